@@ -0,0 +1,101 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.security.*;
+
+/**
+ * A benchmark for exception delivery. Runs a user program with only a few of
+ * its pages mapped at a time, much like a kernel refilling a small
+ * software-managed TLB. The grader handles every page fault itself by mapping
+ * the faulting page and unmapping the page that has been mapped longest, so
+ * the program takes a fault every time it moves to a page that is not
+ * mapped. The benchmark ends at the program's first system call (normally
+ * <tt>exit()</tt>), when it prints the number of faults and how long they
+ * took in host time.
+ *
+ * <p>
+ * Use a kernel that uses page tables, such as the one in <tt>proj2</tt>, and
+ * set the number of mapped pages with the <tt>resident</tt> argument. For
+ * example:
+ *
+ * <pre>
+ * nachos -- nachos.ag.FaultBenchmark -x sort.coff -# resident=4
+ * </pre>
+ */
+public class FaultBenchmark extends AutoGrader {
+    void init() {
+	resident = getIntegerArgument("resident");
+	Lib.assertTrue(resident >= 2, "resident must be at least 2");
+    }
+
+    void run() {
+	kernel.run();
+    }
+
+    public void runProcessor(Privilege privilege) {
+	super.runProcessor(privilege);
+
+	Processor processor = Machine.processor();
+	Lib.assertTrue(!processor.hasTLB(), "kernel must use page tables");
+
+	// unmap every page; faults will map them back a few at a time
+	pageTable = processor.getPageTable();
+	mappable = new boolean[pageTable.length];
+	for (int i=0; i<pageTable.length; i++) {
+	    if (pageTable[i] != null && pageTable[i].valid) {
+		mappable[i] = true;
+		pageTable[i].valid = false;
+	    }
+	}
+
+	mapped = new int[resident];
+	for (int i=0; i<resident; i++)
+	    mapped[i] = -1;
+
+	startTime = System.nanoTime();
+    }
+
+    public boolean exceptionHandler(Privilege privilege) {
+	super.exceptionHandler(privilege);
+
+	Processor processor = Machine.processor();
+	int cause = processor.readRegister(Processor.regCause);
+
+	if (cause == Processor.exceptionPageFault) {
+	    int vpn = Processor.pageFromAddress(
+		processor.readRegister(Processor.regBadVAddr));
+	    if (vpn >= mappable.length || !mappable[vpn])
+		return true;
+
+	    if (mapped[next] != -1)
+		pageTable[mapped[next]].valid = false;
+
+	    pageTable[vpn].valid = true;
+	    mapped[next] = vpn;
+	    next = (next+1) % resident;
+
+	    numFaults++;
+	    return false;
+	}
+
+	if (cause == Processor.exceptionSyscall) {
+	    long time = (System.nanoTime() - startTime) / 1000;
+
+	    System.out.println("faults " + numFaults + ", host time "
+			       + time/1000 + " ms, "
+			       + (time > 0 ? numFaults*1000/time : 0)
+			       + " faults per host ms");
+	    Machine.halt();
+	}
+
+	return true;
+    }
+
+    private int resident;
+    private TranslationEntry[] pageTable;
+    private boolean[] mappable;
+    private int[] mapped;
+    private int next = 0;
+    private long numFaults = 0;
+    private long startTime;
+}
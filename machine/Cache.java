@@ -0,0 +1,185 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.IOException;
+
+/**
+ * A model of a set-associative cache on physical addresses, used by the
+ * processor to charge extra ticks for instruction fetches and data accesses
+ * that miss. Only tags are modeled; the data always comes from main memory.
+ *
+ * <p>
+ * Each cache is configured by a group of keys sharing a prefix, such as
+ * <tt>Processor.dcache</tt>:
+ *
+ * <ul>
+ * <li><tt>Size</tt>: the capacity in bytes.
+ * <li><tt>LineSize</tt>: the line size in bytes.
+ * <li><tt>Associativity</tt>: the number of lines in each set.
+ * <li><tt>MissPenalty</tt>: the ticks charged to fill a line.
+ * <li><tt>WritePolicy</tt>: <tt>writeback</tt> (write-allocate) or
+ *	<tt>writethrough</tt> (no write-allocate).
+ * <li><tt>WritePenalty</tt>: the ticks charged to write a dirty line back,
+ *	or, for a write-through cache, to write each store through. Defaults
+ *	to the miss penalty.
+ * </ul>
+ *
+ * <p>
+ * The size, line size and number of sets must be powers of two. Lines are
+ * replaced in least recently used order.
+ */
+final class Cache {
+    /**
+     * Allocate a new cache, configured by the keys with the specified
+     * prefix.
+     *
+     * @param	prefix	the prefix of the configuration keys.
+     */
+    Cache(String prefix) {
+	int size = Config.getInteger(prefix + "Size", 4096);
+	int lineSize = Config.getInteger(prefix + "LineSize", 32);
+	associativity = Config.getInteger(prefix + "Associativity", 1);
+	missPenalty = Config.getInteger(prefix + "MissPenalty", 10);
+	writePenalty = Config.getInteger(prefix + "WritePenalty", missPenalty);
+
+	String policy = Config.getString(prefix + "WritePolicy", "writeback");
+	if (policy.equals("writeback"))
+	    writeBack = true;
+	else if (policy.equals("writethrough"))
+	    writeBack = false;
+	else
+	    Lib.assertNotReached("bad write policy for " + prefix);
+
+	Lib.assertTrue(lineSize >= 4 && Integer.bitCount(lineSize) == 1 &&
+		       associativity > 0 &&
+		       size % (lineSize*associativity) == 0,
+		       "bad geometry for " + prefix);
+	numSets = size / (lineSize*associativity);
+	Lib.assertTrue(Integer.bitCount(numSets) == 1,
+		       "bad geometry for " + prefix);
+
+	lineShift = Integer.numberOfTrailingZeros(lineSize);
+
+	int numLines = numSets * associativity;
+	tags = new int[numLines];
+	valid = new boolean[numLines];
+	dirty = new boolean[numLines];
+	lastUsed = new long[numLines];
+    }
+
+    /**
+     * Access the specified physical address, and return the number of ticks
+     * the access stalls the processor. The access must not span more than one
+     * line.
+     *
+     * @param	paddr	the physical address accessed.
+     * @param	writing	<tt>true</tt> if the access is a store.
+     * @return	the number of ticks of penalty for the access.
+     */
+    int access(int paddr, boolean writing) {
+	int line = paddr >>> lineShift;
+	int first = (line & (numSets-1)) * associativity;
+	int last = first + associativity;
+
+	clock++;
+
+	for (int i=first; i<last; i++) {
+	    if (valid[i] && tags[i] == line) {
+		numHits++;
+		lastUsed[i] = clock;
+
+		if (!writing)
+		    return 0;
+		if (writeBack) {
+		    dirty[i] = true;
+		    return 0;
+		}
+		return writePenalty;
+	    }
+	}
+
+	numMisses++;
+
+	if (writing && !writeBack)
+	    return writePenalty;
+
+	int victim = first;
+	for (int i=first; i<last; i++) {
+	    if (!valid[i]) {
+		victim = i;
+		break;
+	    }
+	    if (lastUsed[i] < lastUsed[victim])
+		victim = i;
+	}
+
+	int penalty = missPenalty;
+	if (valid[victim] && dirty[victim]) {
+	    numWriteBacks++;
+	    penalty += writePenalty;
+	}
+
+	tags[victim] = line;
+	valid[victim] = true;
+	dirty[victim] = writing;
+	lastUsed[victim] = clock;
+
+	return penalty;
+    }
+
+    /**
+     * Save the lines, the LRU clock, and the counters of this cache to a
+     * snapshot.
+     */
+    void saveSnapshot(Snapshot snapshot) throws IOException {
+	snapshot.putInt(tags.length);
+	for (int i=0; i<tags.length; i++) {
+	    snapshot.putInt(tags[i]);
+	    snapshot.putInt((valid[i] ? 1 : 0) | (dirty[i] ? 2 : 0));
+	    snapshot.putLong(lastUsed[i]);
+	}
+	snapshot.putLong(clock);
+
+	snapshot.putLong(numHits);
+	snapshot.putLong(numMisses);
+	snapshot.putLong(numWriteBacks);
+    }
+
+    /**
+     * Restore the state saved by <tt>saveSnapshot()</tt>. The cache must have
+     * the same number of lines as the saved one.
+     */
+    void restoreSnapshot(Snapshot snapshot) throws IOException {
+	Lib.assertTrue(snapshot.getInt() == tags.length,
+		       "snapshot has a different cache");
+	for (int i=0; i<tags.length; i++) {
+	    tags[i] = snapshot.getInt();
+	    int flags = snapshot.getInt();
+	    valid[i] = (flags & 1) != 0;
+	    dirty[i] = (flags & 2) != 0;
+	    lastUsed[i] = snapshot.getLong();
+	}
+	clock = snapshot.getLong();
+
+	numHits = snapshot.getLong();
+	numMisses = snapshot.getLong();
+	numWriteBacks = snapshot.getLong();
+    }
+
+    /** The number of accesses that hit. */
+    long numHits = 0;
+    /** The number of accesses that missed. */
+    long numMisses = 0;
+    /** The number of dirty lines written back. */
+    long numWriteBacks = 0;
+
+    private int associativity, numSets, lineShift;
+    private int missPenalty, writePenalty;
+    private boolean writeBack;
+
+    private int[] tags;
+    private boolean[] valid, dirty;
+    private long[] lastUsed;
+    private long clock = 0;
+}
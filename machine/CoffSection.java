@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -97,7 +96,8 @@ public class CoffSection {
 	    throw new EOFException();
 	}
 
-	if (vaddr%Processor.pageSize != 0 || size < 0 ||
+	int pageSize = Machine.processor().getPageSize();
+	if (vaddr%pageSize != 0 || size < 0 ||
 	    initialized && (contentOffset < 0 ||
 			    contentOffset+size > file.length())) {
 	    Lib.debug(dbgCoffSection, "\tinvalid section addresses: " +
@@ -106,8 +106,8 @@ public class CoffSection {
 	    throw new EOFException();
 	}
 
-	numPages = Lib.divRoundUp(size, Processor.pageSize);
-	firstVPN = vaddr / Processor.pageSize;
+	numPages = Lib.divRoundUp(size, pageSize);
+	firstVPN = vaddr / pageSize;
     }
 
     /**
@@ -179,9 +179,9 @@ public class CoffSection {
 	Lib.assertTrue(spn>=0 && spn<numPages);
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
-	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
-	int paddr = ppn*pageSize;
+	int pageSize = Machine.processor().getPageSize();
+	byte[] page = new byte[pageSize];
+	int paddr = Processor.makeAddress(ppn, 0);
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
 
@@ -197,9 +197,9 @@ public class CoffSection {
 	    initlen = pageSize;
 
 	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	    Lib.strictReadFile(file, faddr, page, 0, initlen);
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	Machine.processor().writePhysicalMemory(paddr, page, 0, pageSize);
     }
 
     /** The COFF object to which this section belongs. */
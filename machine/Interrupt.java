@@ -4,9 +4,12 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +41,13 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program
  * would fail in real life, you should still write properly synchronized code.
+ *
+ * <p>
+ * Pending interrupts are kept in a timing wheel with one slot per tick,
+ * covering the next <tt>wheelSize</tt> ticks, so scheduling and dispatching
+ * the usual short-term device interrupts take constant time. Interrupts
+ * scheduled further ahead wait in a heap. Interrupts due at the same time
+ * occur in the order they were scheduled.
  */
 public final class Interrupt {
     /**
@@ -53,7 +63,9 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+
+	// read once; the flag is tested on every tick
+	tracing = Lib.test(dbgInt);
     }
 
     /**
@@ -120,17 +132,169 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Wait for the next interrupt. Simulated time jumps straight to the next
+     * pending interrupt, which then occurs along with any others due at the
+     * same time. The skipped time is counted as idle time. This is meant for
+     * the idle thread, which would otherwise spin until an interrupt is due.
+     * Does nothing if no interrupt is pending.
+     */
+    public void idle() {
+	Lib.assertTrue(enabled);
+
+	long time = nextPendingTime();
+	if (time == Long.MAX_VALUE)
+	    return;
+
+	Stats stats = privilege.stats;
+	if (time > stats.totalTicks) {
+	    stats.idleTicks += time - stats.totalTicks;
+	    stats.totalTicks = time;
+	}
+
+	if (tracing)
+	    System.out.println("== Idle until " + stats.totalTicks + " ==");
+
+	enabled = false;
+	checkIfDue();
+	enabled = true;
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (tracing)
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
+
+	add(time, type, handler);
+	handlers.put(type, handler);
+    }
+
+    /**
+     * Add a pending interrupt, taking a node from the free list if there is
+     * one.
+     */
+    private void add(long time, String type, Runnable handler) {
+	PendingInterrupt toOccur = freeList;
+	if (toOccur != null)
+	    freeList = toOccur.next;
+	else
+	    toOccur = new PendingInterrupt();
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
+	toOccur.next = null;
+
+	if (numInWheel == 0)
+	    wheelStart = privilege.stats.totalTicks;
+
+	if (time >= wheelStart && time < wheelStart + wheelSize) {
+	    // every time in the wheel has its own slot, so slots are FIFO
+	    int slot = (int) time & (wheelSize-1);
+	    if (wheelHeads[slot] == null) {
+		wheelHeads[slot] = toOccur;
+		occupied[slot >> 6] |= 1L << slot;
+	    }
+	    else {
+		wheelTails[slot].next = toOccur;
+	    }
+	    wheelTails[slot] = toOccur;
+	    numInWheel++;
+	}
+	else {
+	    overflow.add(toOccur);
+	}
+
+	numPending++;
+	first = null;
+    }
+
+    /**
+     * Return the pending interrupt that will occur first, without removing
+     * it, or <tt>null</tt> if there is none.
+     */
+    private PendingInterrupt first() {
+	if (first != null || numPending == 0)
+	    return first;
+
+	PendingInterrupt toOccur = overflow.peek();
+
+	if (numInWheel > 0) {
+	    // find the first occupied slot at or after the start of the wheel
+	    int slot = (int) wheelStart & (wheelSize-1);
+	    int word = slot >> 6;
+	    long bits = occupied[word] & (-1L << slot);
+	    while (bits == 0) {
+		word = (word+1) & (occupied.length-1);
+		bits = occupied[word];
+	    }
+	    slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+
+	    PendingInterrupt head = wheelHeads[slot];
+	    if (toOccur == null || order.compare(head, toOccur) < 0)
+		toOccur = head;
+	}
 
-	pending.add(toOccur);
+	first = toOccur;
+	return first;
+    }
+
+    /**
+     * Remove the pending interrupt that will occur first. The caller must
+     * put the node back on the free list when it is done with it.
+     */
+    private PendingInterrupt removeFirst() {
+	PendingInterrupt toOccur = first();
+
+	if (toOccur == overflow.peek()) {
+	    overflow.poll();
+	}
+	else {
+	    int slot = (int) toOccur.time & (wheelSize-1);
+	    wheelHeads[slot] = toOccur.next;
+	    if (toOccur.next == null)
+		occupied[slot >> 6] &= ~(1L << slot);
+	    numInWheel--;
+	}
+
+	// nothing pending is earlier, so the wheel can start here
+	if (toOccur.time > wheelStart)
+	    wheelStart = toOccur.time;
+
+	numPending--;
+	first = null;
+	return toOccur;
+    }
+
+    /**
+     * Put a node back on the free list.
+     */
+    private void free(PendingInterrupt toOccur) {
+	toOccur.handler = null;
+	toOccur.next = freeList;
+	freeList = toOccur;
+    }
+
+    /**
+     * Return every pending interrupt, in the order they will occur.
+     */
+    private ArrayList<PendingInterrupt> pendingInOrder() {
+	ArrayList<PendingInterrupt> result =
+	    new ArrayList<PendingInterrupt>(overflow);
+
+	for (int slot=0; slot<wheelSize; slot++) {
+	    for (PendingInterrupt toOccur = wheelHeads[slot]; toOccur != null;
+		 toOccur = toOccur.next)
+		result.add(toOccur);
+	}
+
+	Collections.sort(result, order);
+	return result;
     }
 
     private void tick(boolean inKernelMode) {
@@ -145,7 +309,7 @@ public final class Interrupt {
 	    stats.totalTicks += Stats.UserTick;
 	}
 
-	if (Lib.test(dbgInt))
+	if (tracing)
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
 
 	enabled = false;
@@ -153,38 +317,97 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private void tickUser(int numInstructions) {
+	// keep the per-tick debug output
+	if (tracing) {
+	    for (int i=0; i<numInstructions; i++)
+		tick(false);
+	    return;
+	}
+	
+	Stats stats = privilege.stats;
+	long ticks = (long) numInstructions * Stats.UserTick;
+
+	Lib.assertTrue(stats.totalTicks + ticks < nextPendingTime());
+
+	stats.userTicks += ticks;
+	stats.totalTicks += ticks;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
 	Lib.assertTrue(disabled());
 
-	if (Lib.test(dbgInt))
+	if (tracing)
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (nextPendingTime() > time)
 	    return;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (tracing)
+	    System.out.println("Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
-	    Lib.assertTrue(next.time <= time);
+	while (nextPendingTime() <= time) {
+	    PendingInterrupt next = removeFirst();
+	    String type = next.type;
+	    Runnable handler = next.handler;
+	    free(next);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (tracing)
+		System.out.println("  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
-	Lib.debug(dbgInt, "  (end of list)");
+	if (tracing)
+	    System.out.println("  (end of list)");
+    }
+
+    private long nextPendingTime() {
+	PendingInterrupt toOccur = first();
+	if (toOccur == null)
+	    return Long.MAX_VALUE;
+
+	return toOccur.time;
+    }
+
+    /**
+     * Save the pending interrupts to a snapshot.
+     */
+    void saveSnapshot(Snapshot snapshot) throws IOException {
+	ArrayList<PendingInterrupt> pending = pendingInOrder();
+	snapshot.putInt(pending.size());
+	for (int i=0; i<pending.size(); i++) {
+	    snapshot.putLong(pending.get(i).time);
+	    snapshot.putString(pending.get(i).type);
+	}
+    }
+
+    /**
+     * Replace the pending interrupts with those in a snapshot. Handlers are
+     * not saved; each interrupt gets the handler last scheduled for its type,
+     * so every type in the snapshot must have been scheduled at least once
+     * since Nachos started.
+     */
+    void restoreSnapshot(Snapshot snapshot) throws IOException {
+	while (numPending > 0)
+	    free(removeFirst());
+
+	int numPending = snapshot.getInt();
+	for (int i=0; i<numPending; i++) {
+	    long time = snapshot.getLong();
+	    String type = snapshot.getString();
+
+	    Runnable handler = handlers.get(type);
+	    Lib.assertTrue(handler != null,
+			   "cannot restore pending " + type + " interrupt");
+
+	    add(time, type, handler);
+	}
     }
 
     private void print() {
@@ -192,8 +415,9 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	ArrayList<PendingInterrupt> pending = pendingInOrder();
+	for (int i=0; i<pending.size(); i++) {
+	    PendingInterrupt toOccur = pending.get(i);
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,45 +425,63 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
-
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
-	}
-
+    /** A pending interrupt. Nodes are reused once their interrupt occurs. */
+    private static class PendingInterrupt {
 	long time;
 	String type;
 	Runnable handler;
 
-	private long id;
+	/** Orders interrupts due at the same time. */
+	long id;
+	/** The next interrupt in the same wheel slot, or on the free list. */
+	PendingInterrupt next;
     }
+
+    /** Orders pending interrupts by time, then by when they were scheduled. */
+    private static final Comparator<PendingInterrupt> order =
+	new Comparator<PendingInterrupt>() {
+	    public int compare(PendingInterrupt a, PendingInterrupt b) {
+		if (a.time != b.time)
+		    return (a.time < b.time) ? -1 : 1;
+		else
+		    return (a.id < b.id) ? -1 : (a.id > b.id) ? 1 : 0;
+	    }
+	};
     
     private long numPendingInterruptsCreated = 0;
 
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /** The number of ticks covered by the timing wheel; a power of two. */
+    private static final int wheelSize = 1024;
+    /**
+     * The earliest time the wheel can hold. No interrupt in the wheel is
+     * earlier, and each one is less than <tt>wheelSize</tt> ticks later.
+     */
+    private long wheelStart = 0;
+    /** The first and last interrupt in each slot of the wheel. */
+    private PendingInterrupt[] wheelHeads = new PendingInterrupt[wheelSize];
+    private PendingInterrupt[] wheelTails = new PendingInterrupt[wheelSize];
+    /** One bit per slot of the wheel, set if the slot is not empty. */
+    private long[] occupied = new long[wheelSize/64];
+    private int numInWheel = 0;
+    /** Interrupts too far ahead for the wheel when they were scheduled. */
+    private PriorityQueue<PendingInterrupt> overflow =
+	new PriorityQueue<PendingInterrupt>(11, order);
+    private int numPending = 0;
+    /** The interrupt that will occur first, or <tt>null</tt> if unknown. */
+    private PendingInterrupt first = null;
+    /** Nodes ready to be reused. */
+    private PendingInterrupt freeList = null;
+    /** The handler most recently scheduled for each type of interrupt. */
+    private HashMap<String, Runnable> handlers =
+	new HashMap<String, Runnable>();
 
     private static final char dbgInt = 'i';
+    /** <tt>true</tt> if the <tt>i</tt> debug flag was set at startup. */
+    private boolean tracing;
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
 	public void schedule(long when, String type, Runnable handler) {
@@ -249,5 +491,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tickUser(int numInstructions) {
+	    Interrupt.this.tickUser(numInstructions);
+	}
+
+	public long nextPendingTime() {
+	    return Interrupt.this.nextPendingTime();
+	}
     }
 }
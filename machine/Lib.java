@@ -32,7 +32,7 @@ public final class Lib {
     private Lib() {
     }
 
-    private static Random random = null;
+    private static SavableRandom random = null;
 
     /**
      * Seed the random number generater. May only be called once.
@@ -41,7 +41,7 @@ public final class Lib {
      */
     public static void seedRandom(long randomSeed) {
 	assertTrue(random == null);
-	random = new Random(randomSeed);
+	random = new SavableRandom(randomSeed);
     }
     
     /**
@@ -66,6 +66,55 @@ public final class Lib {
 	return random.nextDouble();
     }
 
+    /**
+     * Return the state of the random number generator, so it can be saved in
+     * a snapshot.
+     *
+     * @return	the state of the random number generator.
+     */
+    static long getRandomState() {
+	return random.state;
+    }
+
+    /**
+     * Set the state of the random number generator to one returned by
+     * <tt>getRandomState()</tt>.
+     *
+     * @param	state	the new state of the random number generator.
+     */
+    static void setRandomState(long state) {
+	random.state = state;
+    }
+
+    /**
+     * A random number generator with a state that can be saved and restored.
+     * It uses the same linear congruential generator as <tt>Random</tt>, so
+     * it returns the same numbers for the same seed.
+     */
+    private static class SavableRandom extends Random {
+	SavableRandom(long seed) {
+	    super(seed);
+	}
+
+	public synchronized void setSeed(long seed) {
+	    state = (seed ^ multiplier) & mask;
+	}
+
+	protected int next(int bits) {
+	    state = (state * multiplier + addend) & mask;
+	    return (int) (state >>> (48 - bits));
+	}
+
+	// set by setSeed(), called from the Random constructor
+	long state;
+
+	private static final long serialVersionUID = 1L;
+
+	private static final long multiplier = 0x5DEECE66DL;
+	private static final long addend = 0xBL;
+	private static final long mask = (1L << 48) - 1;
+    }
+
     /**
      * Asserts that <i>expression</i> is <tt>true</tt>. If not, then Nachos
      * exits with an error message.
@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -65,10 +66,14 @@ public final class Machine {
 
     /**
      * Yield to non-Nachos threads. Use in non-preemptive JVM's to give
-     * non-Nachos threads a chance to run.
+     * non-Nachos threads a chance to run. Does nothing if TCBs hand off with
+     * <tt>park()</tt>: a context switch to another TCB then blocks the
+     * current thread anyway, and a switch to the current TCB yields in
+     * <tt>TCB.contextSwitch()</tt>.
      */
     public static void yield() {
-	Thread.yield();
+	if (!TCB.isParking())
+	    Thread.yield();
     }
 
     /**
@@ -97,9 +102,67 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+	if (processor != null)
+	    processor.printProfile();
 	terminate();
     }
 
+    /**
+     * Save the state of the simulated hardware to a snapshot file: processor
+     * registers, the TLB or page table, physical memory, statistics, pending
+     * interrupts, and the timer. Kernel state is not saved.
+     *
+     * <p>
+     * A snapshot is also saved at the time given by
+     * <tt>Machine.snapshotTime</tt> to the file named by
+     * <tt>Machine.saveSnapshot</tt>, if both are set.
+     *
+     * @param	fileName	the name of the snapshot file.
+     */
+    public static void saveSnapshot(final String fileName) {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			Snapshot.save(fileName, stats);
+			System.out.println("snapshot saved to " + fileName
+					   + " at time " + stats.totalTicks);
+		    }
+		    catch (IOException e) {
+			System.out.println("could not save snapshot to "
+					   + fileName + ": " + e);
+		    }
+		}
+	    });
+    }
+
+    /**
+     * Restore the state of the simulated hardware from a snapshot file saved
+     * by <tt>saveSnapshot()</tt>. The kernel must be in a state equivalent to
+     * the one it was in when the snapshot was saved; normally it has just
+     * loaded the same program, with the same configuration.
+     *
+     * <p>
+     * If <tt>Machine.restoreSnapshot</tt> names a snapshot file, it is
+     * restored the first time the processor starts running a program.
+     *
+     * @param	fileName	the name of the snapshot file.
+     */
+    public static void restoreSnapshot(final String fileName) {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			Snapshot.restore(fileName, stats);
+			System.out.println("snapshot restored from " + fileName
+					   + " at time " + stats.totalTicks);
+		    }
+		    catch (IOException e) {
+			Lib.assertNotReached("could not restore snapshot from "
+					     + fileName + ": " + e);
+		    }
+		}
+	    });
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -187,6 +250,16 @@ public final class Machine {
 
 	if (Config.getBoolean("Machine.networkLink"))
 	    networkLink = new NetworkLink(privilege);
+
+	final String snapshotFileName =
+	    Config.getString("Machine.saveSnapshot", null);
+	if (snapshotFileName != null) {
+	    int snapshotTime = Config.getInteger("Machine.snapshotTime");
+	    privilege.interrupt.schedule(snapshotTime, "snapshot",
+					 new Runnable() {
+		    public void run() { saveSnapshot(snapshotFileName); }
+		});
+	}
     }
 
     private static void checkUserClasses() {
@@ -4,6 +4,11 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -40,21 +45,121 @@ public final class Processor {
 	usingTLB =
 	    (clsVMKernel != null && clsVMKernel.isAssignableFrom(clsKernel));
 	
+	pageBytes = Config.getInteger("Processor.pageSize", pageSize);
+	Lib.assertTrue(Integer.bitCount(pageBytes) == 1 && pageBytes >= 0x100,
+		       "bad page size");
+	pageShift = Integer.numberOfTrailingZeros(pageBytes);
+	addressSpacePages = (int) (0x100000000L / pageBytes);
+
 	this.numPhysPages = numPhysPages;
 
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	memorySize = (long) pageBytes * numPhysPages;
+	directMemory = Config.getBoolean("Processor.directMemory", false);
+
+	if (Config.getBoolean("Processor.sparseMemory", false)) {
+	    // physical addresses are unsigned, so memory can be up to 4GB
+	    Lib.assertTrue(numPhysPages <= addressSpacePages,
+			   "too many physical pages");
+
+	    mainMemory = null;
+	    zeroFrame = ByteBuffer.allocate(pageBytes).asReadOnlyBuffer();
+	    zeroFrame.order(ByteOrder.LITTLE_ENDIAN);
+	    frames = new ByteBuffer[numPhysPages];
+	    Arrays.fill(frames, zeroFrame);
+	}
+	else {
+	    Lib.assertTrue(memorySize <= Integer.MAX_VALUE,
+			   "too many physical pages; "
+			   + "set Processor.sparseMemory");
+
+	    if (directMemory) {
+		// keep large memories off the garbage-collected heap
+		mainMemory = null;
+		memory = ByteBuffer.allocateDirect((int) memorySize);
+	    }
+	    else {
+		mainMemory = new byte[(int) memorySize];
+		memory = ByteBuffer.wrap(mainMemory);
+	    }
+	    memory.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	// the decode state of each chunk is allocated on its first fetch
+	int numDecodeChunks = ((numPhysPages-1) >> decodeChunkShift) + 1;
+	decodeCache = new DecodedInstruction[numDecodeChunks][][];
+	decodeEpochs = new int[numDecodeChunks][];
+
+	batchedExecution = Config.getBoolean("Processor.batchedExecution",
+					     true);
+
+	if (Config.getBoolean("Processor.profile", false))
+	    profiler = new Profiler(privilege);
+
+	if (Config.getBoolean("Processor.caches", false)) {
+	    icache = new Cache("Processor.icache");
+	    dcache = new Cache("Processor.dcache");
+	}
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", 4);
+	    tlbAssociativity =
+		Config.getInteger("Processor.tlbAssociativity", tlbSize);
+	    // an instruction's fetch and data pages may share a set, so each
+	    // set needs room for both or the instruction can never complete
+	    Lib.assertTrue(tlbAssociativity >= 2 &&
+			   tlbSize % tlbAssociativity == 0,
+			   "bad TLB geometry");
+	    tlbNumSets = tlbSize / tlbAssociativity;
+
+	    String replacement =
+		Config.getString("Processor.tlbReplacement", "lru");
+	    if (replacement.equals("lru"))
+		tlbReplacement = replaceLRU;
+	    else if (replacement.equals("fifo"))
+		tlbReplacement = replaceFIFO;
+	    else if (replacement.equals("random"))
+		tlbReplacement = replaceRandom;
+	    else
+		Lib.assertNotReached("bad TLB replacement policy");
+
+	    tlbLastUsed = new long[tlbSize];
+	    tlbLastWritten = new long[tlbSize];
+	    tlbSources = new TranslationEntry[tlbSize];
+	    
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    int numBuckets = 1;
+	    while (numBuckets < tlbSize*2)
+		numBuckets <<= 1;
+
+	    tlbBuckets = new int[numBuckets];
+	    Arrays.fill(tlbBuckets, -1);
+	    tlbChain = new int[tlbSize];
 	}
 	else {
 	    translations = null;
 	}
+
+	snapshotToRestore = Config.getString("Machine.restoreSnapshot", null);
+
+	readDebugFlags();
+    }
+
+    /**
+     * Read the debug flags that affect the processor into fields, so that the
+     * per-instruction paths test a field instead of calling
+     * <tt>Lib.test()</tt>. Flags are read again each time the processor
+     * starts running.
+     */
+    private void readDebugFlags() {
+	tracing = Lib.test(dbgProcessor);
+	disassembling = Lib.test(dbgDisassemble);
+	fullDisassembling = Lib.test(dbgFullDisassemble);
     }
 
     /**
@@ -91,17 +196,110 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	if (snapshotToRestore != null) {
+	    String fileName = snapshotToRestore;
+	    snapshotToRestore = null;
+	    Machine.restoreSnapshot(fileName);
+	}
+
 	Instruction inst = new Instruction();
+
+	// batches skip the per-instruction trace output
+	readDebugFlags();
+	boolean verbose = tracing || disassembling || fullDisassembling;
+	// cache stalls are charged after each instruction, so no batching
+	boolean batching = batchedExecution && !verbose && icache == null;
 	
 	while (true) {
+	    int stalls = 0;
 	    try {
-		inst.run();
+		if (batching)
+		    runBatch(inst);
+		else
+		    inst.run();
 	    }
 	    catch (MipsException e) {
+		// the handler may switch to another thread too, so claim the
+		// stalls taken before the exception first
+		stalls = stallTicks;
+		stallTicks = 0;
 		e.handle();
 	    }
 
+	    // a tick may switch to another thread, which takes stalls of its
+	    // own on this processor, so claim this instruction's stalls first
+	    stalls += stallTicks;
+	    stallTicks = 0;
+
 	    privilege.interrupt.tick(false);
+
+	    if (icache != null)
+		chargeStalls(stalls);
+	}
+    }
+
+    /**
+     * Advance the time by the penalty of the cache misses taken by the last
+     * instruction, one user tick at a time so that interrupts occur when they
+     * are due. Also update the cache statistics.
+     *
+     * @param	stalls	the number of stall ticks to charge.
+     */
+    private void chargeStalls(int stalls) {
+	while (stalls-- > 0)
+	    privilege.interrupt.tick(false);
+
+	Stats stats = privilege.stats;
+	stats.numICacheHits = icache.numHits;
+	stats.numICacheMisses = icache.numMisses;
+	stats.numDCacheHits = dcache.numHits;
+	stats.numDCacheMisses = dcache.numMisses;
+	stats.numDCacheWriteBacks = dcache.numWriteBacks;
+    }
+
+    /**
+     * Execute instructions until the next pending interrupt is due, or until
+     * an instruction causes an exception. The simulated time for every
+     * instruction but the last one executed (or attempted) is charged in
+     * bulk; the caller then advances the time for that last instruction, at
+     * which point the pending interrupt becomes due. This is the same
+     * schedule as running each instruction separately, since no interrupt
+     * can occur in between.
+     *
+     * @param	inst	the instruction state to execute with.
+     * @exception	MipsException	if an instruction caused an exception.
+     */
+    private void runBatch(Instruction inst) throws MipsException {
+	long ticks = privilege.interrupt.nextPendingTime()
+	    - privilege.stats.totalTicks;
+
+	// number of instructions until the next interrupt becomes due
+	int budget;
+	if (ticks >= (long) maxBatchLength * Stats.UserTick)
+	    budget = maxBatchLength;
+	else if (ticks > 0)
+	    budget = Lib.divRoundUp((int) ticks, Stats.UserTick);
+	else
+	    budget = 1;
+
+	int start = inst.retired;
+	boolean completed = false;
+
+	try {
+	    do {
+		inst.run();
+	    }
+	    while (inst.retired - start < budget);
+
+	    completed = true;
+	}
+	finally {
+	    int charged = inst.retired - start;
+	    if (completed)
+		charged--;
+
+	    if (charged > 0)
+		privilege.interrupt.tickUser(charged);
 	}
     }
 
@@ -112,8 +310,7 @@ public final class Processor {
      * @return	the value of the register.
      */
     public int readRegister(int number) {
-	Lib.assertTrue(number >= 0 && number < numUserRegisters);
-	
+	// an out of range number fails the array bounds check
 	return registers[number];
     }
 
@@ -124,8 +321,7 @@ public final class Processor {
      * @param	value	the value to write.
      */
     public void writeRegister(int number, int value) {
-	Lib.assertTrue(number >= 0 && number < numUserRegisters);
-
+	// an out of range number fails the array bounds check
 	if (number != 0)
 	    registers[number] = value;
     }
@@ -188,6 +384,71 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the number of entries in each set of this processor's TLB. A
+     * valid entry for a virtual page must be written to one of the entries
+     * in the page's set, which are numbered from
+     * <tt>getTLBSet(vpn) * getTLBAssociativity()</tt>. If the associativity
+     * equals the TLB size, the TLB is fully associative.
+     *
+     * @return	the associativity of this processor's TLB.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbAssociativity;
+    }
+
+    /**
+     * Return the TLB set that can hold an entry for the specified virtual
+     * page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the TLB set number for <tt>vpn</tt>.
+     */
+    public int getTLBSet(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	return (int) ((vpn & 0xFFFFFFFFL) % tlbNumSets);
+    }
+
+    /**
+     * Suggest which TLB entry to replace in order to map the specified
+     * virtual page. An invalid entry in the page's set is suggested first;
+     * otherwise the entry is chosen by the replacement policy given by
+     * <tt>Processor.tlbReplacement</tt> (<tt>lru</tt>, <tt>fifo</tt>, or
+     * <tt>random</tt>). The kernel is free to ignore the suggestion, as long
+     * as it writes to an entry in the right set.
+     *
+     * @param	vpn	the virtual page number that needs a TLB entry.
+     * @return	the index of the suggested TLB entry.
+     */
+    public int getTLBReplacementHint(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	int first = getTLBSet(vpn) * tlbAssociativity;
+	int last = first + tlbAssociativity;
+
+	for (int i=first; i<last; i++) {
+	    if (!translations[i].valid)
+		return i;
+	}
+
+	if (tlbReplacement == replaceRandom)
+	    return first + Lib.random(tlbAssociativity);
+
+	long[] times = (tlbReplacement == replaceLRU) ?
+	    tlbLastUsed : tlbLastWritten;
+
+	int victim = first;
+	for (int i=first+1; i<last; i++) {
+	    if (times[i] < times[victim])
+		victim = i;
+	}
+
+	return victim;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +466,15 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * If the TLB is fully associative (the default), the location of an entry
+     * within the TLB does not affect anything. Otherwise a valid entry must be
+     * written to the set for its virtual page; see
+     * <tt>getTLBAssociativity()</tt>.
+     *
+     * <p>
+     * An entry whose <tt>numPages</tt> is greater than 1 maps a large page,
+     * covering that many consecutive virtual pages with a single TLB entry.
+     * It belongs to the set for its first virtual page.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -214,8 +482,381 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(!entry.valid ||
+		       getTLBSet(entry.vpn) == number / tlbAssociativity,
+		       "TLB entry written to the wrong set");
+	Lib.assertTrue(!entry.valid ||
+		       (Integer.bitCount(entry.numPages) == 1 &&
+			(entry.vpn & (entry.numPages-1)) == 0 &&
+			(entry.ppn & (entry.numPages-1)) == 0),
+		       "misaligned large page");
+
+	TranslationEntry old = translations[number];
+	if (old.valid) {
+	    unlinkTLBEntry(number);
+
+	    if (!entry.valid || entry.vpn != old.vpn)
+		privilege.stats.numTLBEvictions++;
+
+	    // write the bits of a walked entry back to its page table
+	    TranslationEntry source = tlbSources[number];
+	    if (source != null) {
+		source.used |= old.used;
+		source.dirty |= old.dirty;
+	    }
+	}
+	tlbSources[number] = null;
 
 	translations[number] = new TranslationEntry(entry);
+	tlbLastWritten[number] = tlbLastUsed[number] = ++tlbClock;
+
+	if (entry.valid)
+	    linkTLBEntry(number);
+
+	lastFetchIndex = -1;
+	lastDataIndex = -1;
+    }
+
+    /**
+     * Get the current page directory, set by the last call to
+     * <tt>setPageDirectory()</tt>.
+     *
+     * @return	the current page directory, or <tt>null</tt> if there is none.
+     */
+    public TranslationEntry[][] getPageDirectory() {
+	Lib.assertTrue(usingTLB);
+
+	return pageDirectory;
+    }
+
+    /**
+     * Set the page directory pointer. With a page directory, a TLB miss does
+     * not trap; instead the processor walks the two-level page table itself
+     * and loads the entry it finds into the TLB slot suggested by
+     * <tt>getTLBReplacementHint()</tt>. Only a missing or invalid entry
+     * causes an exception, and it is a page fault rather than a TLB miss.
+     *
+     * <p>
+     * Virtual page <tt>vpn</tt> is mapped by
+     * <tt>pageDirectory[pageDirectoryIndex(vpn)][pageTableIndex(vpn)]</tt>.
+     * Directory slots and second-level tables may be <tt>null</tt> or short,
+     * so only the used parts of a sparse address space need entries. The
+     * <tt>vpn</tt> field of page table entries is ignored.
+     *
+     * <p>
+     * A page table entry whose <tt>numPages</tt> is greater than 1 maps a
+     * large page, and is loaded into the TLB as a single large entry. It
+     * must appear in the slot of every page it covers, with <tt>ppn</tt>
+     * set to the first physical page of the large page.
+     *
+     * <p>
+     * The <tt>used</tt> and <tt>dirty</tt> bits of a walked entry are written
+     * back to the page table when its TLB entry is replaced. Setting a new
+     * page directory replaces every TLB entry that was loaded by the walker,
+     * so the kernel should call this on each context switch. Passing
+     * <tt>null</tt> turns the walker off, and TLB misses trap again.
+     *
+     * @param	pageDirectory	the page directory to use.
+     */
+    public void setPageDirectory(TranslationEntry[][] pageDirectory) {
+	Lib.assertTrue(usingTLB);
+
+	for (int i=0; i<tlbSize; i++) {
+	    if (tlbSources[i] != null)
+		writeTLBEntry(i, new TranslationEntry());
+	}
+
+	this.pageDirectory = pageDirectory;
+    }
+
+    /**
+     * Walk the page table for a virtual page that missed in the TLB, and load
+     * the entry into the TLB.
+     *
+     * @param	vpn	the virtual page number that missed.
+     * @param	vaddr	the virtual address being translated.
+     * @return	the index of the TLB entry that now maps <tt>vpn</tt>.
+     */
+    private int walkPageTable(int vpn, int vaddr) throws MipsException {
+	privilege.stats.numPageWalks++;
+
+	TranslationEntry entry = null;
+
+	int dir = pageDirectoryIndex(vpn);
+	if (dir < pageDirectory.length && pageDirectory[dir] != null) {
+	    TranslationEntry[] table = pageDirectory[dir];
+	    int index = pageTableIndex(vpn);
+	    if (index < table.length)
+		entry = table[index];
+	}
+
+	if (entry == null || !entry.valid) {
+	    privilege.stats.numPageFaults++;
+	    Lib.debug(dbgProcessor, "\t\tpage fault");
+	    throw raise(exceptionPageFault, vaddr);
+	}
+
+	TranslationEntry loaded =
+	    new TranslationEntry(vpn & -entry.numPages, entry.ppn, true,
+				 entry.readOnly, false, false);
+	loaded.numPages = entry.numPages;
+
+	int number = getTLBReplacementHint(loaded.vpn);
+	writeTLBEntry(number, loaded);
+	tlbSources[number] = entry;
+
+	return number;
+    }
+
+    /**
+     * Return the index of the TLB entry that maps the specified virtual page.
+     * If more than one valid entry maps the page, the one with the lowest
+     * index is returned.
+     *
+     * @param	vpn	the virtual page number to look up.
+     * @return	the index of the matching TLB entry, or <tt>-1</tt> if there
+     *		is none.
+     */
+    private int lookupTLB(int vpn) {
+	int index = -1;
+	for (int i=tlbBuckets[vpn & (tlbBuckets.length-1)]; i!=-1;
+	     i=tlbChain[i]) {
+	    if (translations[i].vpn == vpn) {
+		index = i;
+		break;
+	    }
+	}
+
+	// large pages are chained by their first page, so look there too
+	for (int sizes=tlbLargeSizes; sizes!=0; sizes&=sizes-1) {
+	    int numPages = Integer.lowestOneBit(sizes);
+	    int first = vpn & -numPages;
+	    if (first == vpn)
+		continue;
+
+	    for (int i=tlbBuckets[first & (tlbBuckets.length-1)];
+		 i!=-1 && (index == -1 || i < index); i=tlbChain[i]) {
+		if (translations[i].vpn == first &&
+		    translations[i].numPages == numPages) {
+		    index = i;
+		    break;
+		}
+	    }
+	}
+
+	return index;
+    }
+
+    /**
+     * Add a valid TLB entry to the hash chain for its virtual page. Chains
+     * are kept sorted by TLB index.
+     *
+     * @param	number	the index of the TLB entry.
+     */
+    private void linkTLBEntry(int number) {
+	int numPages = translations[number].numPages;
+	if (numPages > 1) {
+	    tlbLargeCounts[Integer.numberOfTrailingZeros(numPages)]++;
+	    tlbLargeSizes |= numPages;
+	}
+
+	int bucket = translations[number].vpn & (tlbBuckets.length-1);
+
+	int prev = -1, next = tlbBuckets[bucket];
+	while (next != -1 && next < number) {
+	    prev = next;
+	    next = tlbChain[next];
+	}
+
+	tlbChain[number] = next;
+	if (prev == -1)
+	    tlbBuckets[bucket] = number;
+	else
+	    tlbChain[prev] = number;
+    }
+
+    /**
+     * Remove a valid TLB entry from the hash chain for its virtual page.
+     *
+     * @param	number	the index of the TLB entry.
+     */
+    private void unlinkTLBEntry(int number) {
+	int numPages = translations[number].numPages;
+	if (numPages > 1 &&
+	    --tlbLargeCounts[Integer.numberOfTrailingZeros(numPages)] == 0)
+	    tlbLargeSizes &= ~numPages;
+
+	int bucket = translations[number].vpn & (tlbBuckets.length-1);
+
+	int prev = -1, next = tlbBuckets[bucket];
+	while (next != number) {
+	    prev = next;
+	    next = tlbChain[next];
+	}
+
+	if (prev == -1)
+	    tlbBuckets[bucket] = tlbChain[number];
+	else
+	    tlbChain[prev] = tlbChain[number];
+    }
+
+    /**
+     * Print the profile of user programs and write its call stack file, if
+     * <tt>Processor.profile</tt> is set. Called when the machine halts.
+     */
+    void printProfile() {
+	if (profiler != null)
+	    profiler.print();
+    }
+
+    /**
+     * Save the registers, the delayed load, the TLB or page table, the
+     * caches, and the non-zero pages of physical memory to a snapshot.
+     */
+    void saveSnapshot(Snapshot snapshot) throws IOException {
+	snapshot.putInt(pageBytes);
+	snapshot.putInt(numPhysPages);
+
+	for (int i=0; i<numUserRegisters; i++)
+	    snapshot.putInt(registers[i]);
+	snapshot.putInt(loadTarget);
+	snapshot.putInt(loadMask);
+	snapshot.putInt(loadValue);
+
+	if (translations == null) {
+	    snapshot.putInt(-1);
+	}
+	else {
+	    snapshot.putInt(translations.length);
+	    for (int i=0; i<translations.length; i++)
+		saveEntry(snapshot, translations[i]);
+	}
+
+	if (usingTLB) {
+	    for (int i=0; i<tlbSize; i++) {
+		snapshot.putLong(tlbLastUsed[i]);
+		snapshot.putLong(tlbLastWritten[i]);
+	    }
+	    snapshot.putLong(tlbClock);
+	}
+
+	snapshot.putInt(icache != null ? 1 : 0);
+	if (icache != null) {
+	    icache.saveSnapshot(snapshot);
+	    dcache.saveSnapshot(snapshot);
+	}
+
+	// only non-zero pages, each preceded by its number
+	byte[] page = new byte[pageBytes];
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    if (frames != null && frames[ppn] == zeroFrame)
+		continue;
+
+	    readPhysicalMemory(ppn << pageShift, page, 0, pageBytes);
+	    if (!isZero(page, 0, pageBytes)) {
+		snapshot.putInt(ppn);
+		snapshot.putBytes(page, 0, pageBytes);
+	    }
+	}
+	snapshot.putInt(-1);
+    }
+
+    /**
+     * Restore the state saved by <tt>saveSnapshot()</tt>. Page table entries
+     * are restored into the current page table, which must be the same size
+     * as the saved one. Pages missing from the snapshot are zeroed.
+     */
+    void restoreSnapshot(Snapshot snapshot) throws IOException {
+	Lib.assertTrue(snapshot.getInt() == pageBytes &&
+		       snapshot.getInt() == numPhysPages,
+		       "snapshot has a different physical memory");
+
+	for (int i=0; i<numUserRegisters; i++)
+	    registers[i] = snapshot.getInt();
+	loadTarget = snapshot.getInt();
+	loadMask = snapshot.getInt();
+	loadValue = snapshot.getInt();
+
+	int numEntries = snapshot.getInt();
+	Lib.assertTrue(numEntries == (translations == null ?
+				      -1 : translations.length),
+		       "snapshot has a different page table");
+
+	if (usingTLB) {
+	    // the entries no longer come from the current page tables
+	    Arrays.fill(tlbSources, null);
+
+	    for (int i=0; i<tlbSize; i++) {
+		writeTLBEntry(i, restoreEntry(snapshot, snapshot.getInt(),
+					      new TranslationEntry()));
+	    }
+	    for (int i=0; i<tlbSize; i++) {
+		tlbLastUsed[i] = snapshot.getLong();
+		tlbLastWritten[i] = snapshot.getLong();
+	    }
+	    tlbClock = snapshot.getLong();
+	}
+	else {
+	    for (int i=0; i<numEntries; i++) {
+		int flags = snapshot.getInt();
+		Lib.assertTrue((translations[i] == null) == (flags == 0),
+			       "snapshot has a different page table");
+		if (translations[i] != null)
+		    restoreEntry(snapshot, flags, translations[i]);
+	    }
+	}
+
+	Lib.assertTrue(snapshot.getInt() == (icache != null ? 1 : 0),
+		       "snapshot has different caches");
+	if (icache != null) {
+	    icache.restoreSnapshot(snapshot);
+	    dcache.restoreSnapshot(snapshot);
+	}
+
+	byte[] page = new byte[pageBytes];
+	byte[] zeros = new byte[pageBytes];
+	int next = snapshot.getInt();
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    if (ppn == next) {
+		snapshot.getBytes(page, 0, pageBytes);
+		writePhysicalMemory(ppn << pageShift, page, 0, pageBytes);
+		next = snapshot.getInt();
+	    }
+	    else if (frames == null || frames[ppn] != zeroFrame) {
+		writePhysicalMemory(ppn << pageShift, zeros, 0, pageBytes);
+	    }
+	}
+	Lib.assertTrue(next == -1, "bad page in snapshot");
+
+	invalidateDecodeCache();
+    }
+
+    private static void saveEntry(Snapshot snapshot, TranslationEntry entry)
+	throws IOException {
+	if (entry == null) {
+	    snapshot.putInt(0);
+	    return;
+	}
+
+	snapshot.putInt(1 | (entry.valid ? 2 : 0) | (entry.readOnly ? 4 : 0) |
+			(entry.used ? 8 : 0) | (entry.dirty ? 16 : 0));
+	snapshot.putInt(entry.vpn);
+	snapshot.putInt(entry.ppn);
+	snapshot.putInt(entry.numPages);
+    }
+
+    private static TranslationEntry restoreEntry(Snapshot snapshot,
+						 int flags,
+						 TranslationEntry entry)
+	throws IOException {
+	entry.valid = (flags & 2) != 0;
+	entry.readOnly = (flags & 4) != 0;
+	entry.used = (flags & 8) != 0;
+	entry.dirty = (flags & 16) != 0;
+	entry.vpn = snapshot.getInt();
+	entry.ppn = snapshot.getInt();
+	entry.numPages = snapshot.getInt();
+	return entry;
     }
 
     /**
@@ -228,51 +869,371 @@ public final class Processor {
 	return numPhysPages;
     }
 
+    /**
+     * Return the size of a page, set by <tt>Processor.pageSize</tt>. It is a
+     * power of two and at least 256, and the default is 1KB. The sections of
+     * user programs must be aligned to the page size, so programs linked for
+     * 1KB pages can not be loaded with larger pages.
+     *
+     * @return	the size of a page, in bytes.
+     */
+    public int getPageSize() {
+	return pageBytes;
+    }
+
+    /**
+     * Return the number of pages in a 32-bit address space.
+     *
+     * @return	<tt>2<sup>32</sup> / getPageSize()</tt>.
+     */
+    public int getMaxPages() {
+	return addressSpacePages;
+    }
+
     /**
      * Return a reference to the physical memory array. The size of this array
-     * is <tt>pageSize * getNumPhysPages()</tt>.
+     * is <tt>getPageSize() * getNumPhysPages()</tt>.
+     *
+     * <p>
+     * Since the caller may modify any part of the array, this also discards
+     * every cached decoded instruction, even if the caller only reads. Callers
+     * that write physical memory must call <tt>getMemory()</tt> again before
+     * each batch of writes, rather than holding on to the array.
+     *
+     * <p>
+     * If <tt>Processor.directMemory</tt> or <tt>Processor.sparseMemory</tt>
+     * is set, physical memory is not a Java array, and this method fails.
      *
      * @return	the main memory array.
+     * @deprecated	use <tt>readPhysicalMemory()</tt> and
+     *			<tt>writePhysicalMemory()</tt>, which work with every
+     *			kind of memory, cost nothing in the decode cache when
+     *			reading, and discard decoded instructions only for the
+     *			pages written.
      */
+    @Deprecated
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null,
+		       "physical memory is not an array; "
+		       + "use readPhysicalMemory()");
+	
+	invalidateDecodeCache();
+	
 	return mainMemory;
     }
 
     /**
-     * Concatenate a page number and an offset into an address.
+     * Copy bytes from physical memory into the specified array. Physical
+     * addresses are unsigned, so with more than 2GB of sparse memory the
+     * upper half of memory has negative addresses.
+     *
+     * @param	paddr	the first physical address to read.
+     * @param	data	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readPhysicalMemory(int paddr, byte[] data, int offset,
+				   int length) {
+	Lib.assertTrue(length >= 0 &&
+		       (paddr & 0xFFFFFFFFL) + length <= memorySize);
+
+	if (mainMemory != null) {
+	    System.arraycopy(mainMemory, paddr, data, offset, length);
+	}
+	else if (frames == null) {
+	    ByteBuffer source = memory.duplicate();
+	    source.position(paddr);
+	    source.get(data, offset, length);
+	}
+	else {
+	    while (length > 0) {
+		int pageOffset = offsetOf(paddr);
+		int amount = Math.min(length, pageBytes - pageOffset);
+
+		ByteBuffer source = frames[pageOf(paddr)].duplicate();
+		source.position(pageOffset);
+		source.get(data, offset, amount);
+
+		paddr += amount;
+		offset += amount;
+		length -= amount;
+	    }
+	}
+    }
+
+    /**
+     * Copy bytes from the specified array into physical memory. Cached
+     * decoded instructions are discarded only for the pages written.
+     *
+     * @param	paddr	the first physical address to write.
+     * @param	data	the array containing the data.
+     * @param	offset	the first byte to read from the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writePhysicalMemory(int paddr, byte[] data, int offset,
+				    int length) {
+	Lib.assertTrue(length >= 0 &&
+		       (paddr & 0xFFFFFFFFL) + length <= memorySize);
+
+	if (mainMemory != null) {
+	    System.arraycopy(data, offset, mainMemory, paddr, length);
+	}
+	else if (frames == null) {
+	    ByteBuffer target = memory.duplicate();
+	    target.position(paddr);
+	    target.put(data, offset, length);
+	}
+	else {
+	    int start = paddr, total = length;
+	    
+	    while (length > 0) {
+		int ppn = pageOf(paddr);
+		int pageOffset = offsetOf(paddr);
+		int amount = Math.min(length, pageBytes - pageOffset);
+
+		if (amount == pageBytes && isZero(data, offset, amount)) {
+		    // share the zero frame rather than storing zeros
+		    frames[ppn] = zeroFrame;
+		}
+		else {
+		    ByteBuffer target = writableFrame(ppn).duplicate();
+		    target.position(pageOffset);
+		    target.put(data, offset, amount);
+		}
+
+		paddr += amount;
+		offset += amount;
+		length -= amount;
+	    }
+
+	    paddr = start;
+	    length = total;
+	}
+
+	if (length > 0) {
+	    int first = pageOf(paddr);
+	    int last = pageOf(paddr + length - 1);
+	    for (int ppn=first; ppn<=last; ppn++)
+		invalidateDecodedPage(ppn);
+	}
+    }
+
+    /**
+     * Test whether a range of an array is all zeros.
+     *
+     * @param	data	the array to test.
+     * @param	offset	the first byte to test.
+     * @param	length	the number of bytes to test.
+     * @return	<tt>true</tt> if every byte in the range is zero.
+     */
+    private static boolean isZero(byte[] data, int offset, int length) {
+	for (int i=offset; i<offset+length; i++) {
+	    if (data[i] != 0)
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Return the frame that holds a page of sparse memory, giving the page a
+     * frame of its own first if it still shares the zero frame.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the writable frame for <tt>ppn</tt>.
+     */
+    private ByteBuffer writableFrame(int ppn) {
+	ByteBuffer frame = frames[ppn];
+	if (frame == zeroFrame) {
+	    frame = directMemory ? ByteBuffer.allocateDirect(pageBytes) :
+		ByteBuffer.allocate(pageBytes);
+	    frame.order(ByteOrder.LITTLE_ENDIAN);
+	    frames[ppn] = frame;
+
+	    privilege.stats.numFramesAllocated++;
+	}
+
+	return frame;
+    }
+
+    /**
+     * Discard all cached decoded instructions. The next fetch from any
+     * physical page will decode its instruction again.
+     */
+    private void invalidateDecodeCache() {
+	decodeEpoch++;
+    }
+
+    /**
+     * Discard the cached decoded instructions for one physical page.
+     *
+     * @param	ppn	the physical page number.
+     */
+    private void invalidateDecodedPage(int ppn) {
+	DecodedInstruction[][] chunk = decodeCache[ppn >> decodeChunkShift];
+	if (chunk != null)
+	    chunk[ppn & decodeChunkMask] = null;
+    }
+
+    /**
+     * Load 1, 2, or 4 bytes of physical memory, sign-extending the result.
+     *
+     * @param	paddr	the physical address to load from.
+     * @param	size	the number of bytes to load.
+     * @return	the value loaded.
+     */
+    private int loadPhysical(int paddr, int size) {
+	ByteBuffer buffer = memory;
+	if (frames != null) {
+	    buffer = frames[pageOf(paddr)];
+	    paddr = offsetOf(paddr);
+	}
+	
+	switch (size) {
+	case 1:
+	    return buffer.get(paddr);
+	case 2:
+	    return buffer.getShort(paddr);
+	default:
+	    return buffer.getInt(paddr);
+	}
+    }
+
+    /**
+     * Store 1, 2, or 4 bytes of physical memory.
+     *
+     * @param	paddr	the physical address to store to.
+     * @param	size	the number of bytes to store.
+     * @param	value	the value to store.
+     */
+    private void storePhysical(int paddr, int size, int value) {
+	ByteBuffer buffer = memory;
+	if (frames != null) {
+	    buffer = writableFrame(pageOf(paddr));
+	    paddr = offsetOf(paddr);
+	}
+	
+	switch (size) {
+	case 1:
+	    buffer.put(paddr, (byte) value);
+	    break;
+	case 2:
+	    buffer.putShort(paddr, (short) value);
+	    break;
+	default:
+	    buffer.putInt(paddr, value);
+	    break;
+	}
+    }
+
+    /**
+     * Return the cached decoded instruction at the specified physical
+     * address, decoding and caching it first if necessary.
+     *
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction decodeAt(int paddr) {
+	int ppn = pageOf(paddr);
+	int index = offsetOf(paddr) >> 2;
+
+	int chunkNumber = ppn >> decodeChunkShift;
+	int slot = ppn & decodeChunkMask;
+	DecodedInstruction[][] chunk = decodeCache[chunkNumber];
+	if (chunk == null) {
+	    chunk = new DecodedInstruction[decodeChunkSize][];
+	    decodeCache[chunkNumber] = chunk;
+	    decodeEpochs[chunkNumber] = new int[decodeChunkSize];
+	}
+
+	int[] epochs = decodeEpochs[chunkNumber];
+	DecodedInstruction[] page = chunk[slot];
+	if (page == null || epochs[slot] != decodeEpoch) {
+	    page = new DecodedInstruction[pageBytes >> 2];
+	    chunk[slot] = page;
+	    epochs[slot] = decodeEpoch;
+	}
+
+	DecodedInstruction decoded = page[index];
+	if (decoded != null) {
+	    privilege.stats.numDecodeHits++;
+	    return decoded;
+	}
+
+	privilege.stats.numDecodeMisses++;
+	decoded = new DecodedInstruction(loadPhysical(paddr, 4));
+	page[index] = decoded;
+	return decoded;
+    }
+
+    /**
+     * Concatenate a page number and an offset into an address, using the page
+     * size of the processor.
      *
      * @param	page	the page number. Must be between <tt>0</tt> and
-     *			<tt>(2<sup>32</sup> / pageSize) - 1</tt>.
+     *			<tt>getMaxPages() - 1</tt>.
      * @param	offset	the offset within the page. Must be between <tt>0</tt>
      *			and
-     *			<tt>pageSize - 1</tt>.
+     *			<tt>getPageSize() - 1</tt>.
      * @return	a 32-bit address consisting of the specified page and offset.
      */
     public static int makeAddress(int page, int offset) {
-	Lib.assertTrue(page >= 0 && page < maxPages);
-	Lib.assertTrue(offset >= 0 && offset < pageSize);
+	Processor processor = Machine.processor();
+	Lib.assertTrue(page >= 0 && page < processor.addressSpacePages);
+	Lib.assertTrue(offset >= 0 && offset < processor.pageBytes);
 
-	return (page * pageSize) | offset;
+	return (page << processor.pageShift) | offset;
     }
 
     /**
-     * Extract the page number component from a 32-bit address.
+     * Extract the page number component from a 32-bit address, using the
+     * page size of the processor.
      *
      * @param	address	the 32-bit address.
      * @return	the page number component of the address.
      */
     public static int pageFromAddress(int address) {
-	return (int) (((long) address & 0xFFFFFFFFL) / pageSize);
+	return Machine.processor().pageOf(address);
     }
 
     /**
-     * Extract the offset component from an address.
+     * Extract the offset component from an address, using the page size of
+     * the processor.
      *
      * @param	address	the 32-bit address.
      * @return	the offset component of the address.
      */
     public static int offsetFromAddress(int address) {
-	return (int) (((long) address & 0xFFFFFFFFL) % pageSize);
+	return Machine.processor().offsetOf(address);
+    }
+
+    private int pageOf(int address) {
+	return address >>> pageShift;
+    }
+
+    private int offsetOf(int address) {
+	return address & (pageBytes-1);
+    }
+
+    /**
+     * Extract the page directory index from a virtual page number.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the index of the page table for <tt>vpn</tt> in a page
+     *		directory.
+     */
+    public static int pageDirectoryIndex(int vpn) {
+	return vpn >>> pageTableShift;
+    }
+
+    /**
+     * Extract the second-level page table index from a virtual page number.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the index of the entry for <tt>vpn</tt> in its page table.
+     */
+    public static int pageTableIndex(int vpn) {
+	return vpn & (pageTableSize-1);
     }
 
     private void finishLoad() {
@@ -294,19 +1255,38 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	return translate(vaddr, size, writing, false);
+    }
+
+    /**
+     * Translate a virtual address into a physical address. Instruction
+     * fetches and data references each remember the last TLB entry they
+     * used, so that consecutive references to the same page need not search
+     * the TLB.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	fetching	<tt>true</tt> if the memory reference is an
+     *				instruction fetch.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translate(int vaddr, int size, boolean writing,
+			  boolean fetching) throws MipsException {
+	if (tracing)
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw raise(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
-	int vpn = pageFromAddress(vaddr);
-	int offset = offsetFromAddress(vaddr);
+	int vpn = pageOf(vaddr);
+	int offset = offsetOf(vaddr);
 
 	TranslationEntry entry = null;
 
@@ -317,37 +1297,56 @@ public final class Processor {
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		throw raise(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, find the TLB entry matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
+	    int index;
+	    if (fetching) {
+		if (lastFetchIndex < 0 || vpn != lastFetchVPN) {
+		    lastFetchIndex = lookupTLB(vpn);
+		    lastFetchVPN = vpn;
+		}
+		index = lastFetchIndex;
+	    }
+	    else {
+		if (lastDataIndex < 0 || vpn != lastDataVPN) {
+		    lastDataIndex = lookupTLB(vpn);
+		    lastDataVPN = vpn;
 		}
+		index = lastDataIndex;
 	    }
-	    if (entry == null) {
+
+	    if (index < 0) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		if (pageDirectory == null)
+		    throw raise(exceptionTLBMiss, vaddr);
+
+		index = walkPageTable(vpn, vaddr);
 	    }
+
+	    privilege.stats.numTLBHits++;
+	    tlbLastUsed[index] = ++tlbClock;
+	    entry = translations[index];
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    throw raise(exceptionReadOnly, vaddr);
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
+	if (usingTLB)
+	    ppn += vpn - entry.vpn;	// nonzero only in a large page
 	if (ppn < 0 || ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    throw raise(exceptionBusError, vaddr);
 	}
 
 	// set used and dirty bits as appropriate
@@ -355,11 +1354,13 @@ public final class Processor {
 	if (writing)
 	    entry.dirty = true;
 
-	int paddr = (ppn*pageSize) + offset;
+	// physical addresses are unsigned, so with 4GB of memory ppn*pageBytes
+	// does not fit in an int; the upper 2GB come back as negative ints
+	long paddr = (long) ppn*pageBytes + offset;
 
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
-	return paddr;
+	if (tracing)
+	    System.out.println("\t\tpaddr=0x" + Lib.toHexString((int) paddr));
+	return (int) paddr;
     }
 
     /**
@@ -372,16 +1373,19 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (tracing)
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int paddr = translate(vaddr, size, false);
+	if (dcache != null)
+	    stallTicks += dcache.access(paddr, false);
+	
+	int value = loadPhysical(paddr, size);
 
-	if (Lib.test(dbgProcessor))
+	if (tracing)
 	    System.out.println("\t\tvalue read=0x" +
 			       Lib.toHexString(value, size*2));
 	
@@ -399,15 +1403,24 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (tracing)
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true);
+	if (dcache != null)
+	    stallTicks += dcache.access(paddr, true);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	storePhysical(paddr, size, value);
+
+	// the store may have overwritten a cached instruction
+	int ppn = pageOf(paddr);
+	DecodedInstruction[][] chunk = decodeCache[ppn >> decodeChunkShift];
+	if (chunk != null && chunk[ppn & decodeChunkMask] != null)
+	    chunk[ppn & decodeChunkMask][offsetOf(paddr) >> 2] = null;
     }
 
     /**
@@ -540,21 +1553,139 @@ public final class Processor {
     /** <tt>true</tt> if using a software-managed TLB. */
     private boolean usingTLB;
     /** Number of TLB entries. */
-    private int tlbSize = 4;
+    private int tlbSize;
+    /** Number of TLB entries in each set. */
+    private int tlbAssociativity;
+    /** Number of TLB sets. */
+    private int tlbNumSets;
+    /** The replacement policy used by <tt>getTLBReplacementHint()</tt>. */
+    private int tlbReplacement;
+    /** The page table entries loaded into the TLB by the walker. */
+    private TranslationEntry[] tlbSources;
+    /** The page directory walked on a TLB miss, or <tt>null</tt>. */
+    private TranslationEntry[][] pageDirectory = null;
+    /** Time of the last reference through each TLB entry. */
+    private long[] tlbLastUsed;
+    /** Time at which each TLB entry was last written. */
+    private long[] tlbLastWritten;
+    /** Counts TLB references and writes, to order them. */
+    private long tlbClock = 0;
+
+    private static final int replaceLRU = 0;
+    private static final int replaceFIFO = 1;
+    private static final int replaceRandom = 2;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
 
-    /** Size of a page, in bytes. */
+    /**
+     * Heads of the TLB hash chains, indexed by the low bits of the virtual
+     * page number. Each chain links the valid TLB entries for those pages.
+     */
+    private int[] tlbBuckets;
+    /** The next TLB index in each valid entry's hash chain, or -1. */
+    private int[] tlbChain;
+    /** The sizes, in pages, of the large pages in the TLB, as a bit mask. */
+    private int tlbLargeSizes = 0;
+    /** The number of valid TLB entries of each large page size, by log. */
+    private int[] tlbLargeCounts = new int[32];
+    /** The TLB index used by the last instruction fetch, or -1. */
+    private int lastFetchIndex = -1;
+    /** The virtual page number of the last instruction fetch. */
+    private int lastFetchVPN;
+    /** The TLB index used by the last data reference, or -1. */
+    private int lastDataIndex = -1;
+    /** The virtual page number of the last data reference. */
+    private int lastDataVPN;
+
+    /** The instruction and data caches, or <tt>null</tt> if not modeled. */
+    private Cache icache = null, dcache = null;
+    /** Ticks of cache miss penalty not yet charged. */
+    private int stallTicks = 0;
+
+    /**
+     * The snapshot file to restore when a program first runs, or
+     * <tt>null</tt>.
+     */
+    private String snapshotToRestore;
+
+    /** The user program profiler, or <tt>null</tt> if not profiling. */
+    private Profiler profiler = null;
+
+    /** <tt>true</tt> if address translation should be traced. */
+    private boolean tracing;
+    /** <tt>true</tt> if disassembling each instruction as it runs. */
+    private boolean disassembling;
+    /** <tt>true</tt> if also printing the result of each instruction. */
+    private boolean fullDisassembling;
+
+    /**
+     * The default size of a page, in bytes. <tt>Processor.pageSize</tt> can
+     * set another size, which <tt>getPageSize()</tt> returns once the
+     * processor exists.
+     */
     public static final int pageSize = 0x400;
-    /** Number of pages in a 32-bit address space. */
+    /** The size of a page, in bytes. */
+    private int pageBytes;
+    /** Base 2 logarithm of the page size. */
+    private int pageShift;
+    /** Base 2 logarithm of the number of entries in a page table. */
+    private static final int pageTableShift = 10;
+    /** Number of entries in each second-level page table. */
+    public static final int pageTableSize = 1 << pageTableShift;
+    /** Number of pages of the default size in a 32-bit address space. */
     public static final int maxPages = (int) (0x100000000L / pageSize);
+    /** Number of pages in a 32-bit address space. */
+    private int addressSpacePages;
     /** Number of physical pages in memory. */
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /**
+     * Little-endian view of physical memory, used for all simulated loads and
+     * stores. Wraps <tt>mainMemory</tt>, or is a direct buffer if there is no
+     * array. <tt>null</tt> if memory is sparse.
+     */
+    private ByteBuffer memory;
+    /**
+     * The frames of a sparse memory, one per physical page, or <tt>null</tt>
+     * if memory is contiguous. Pages that have never been written share
+     * <tt>zeroFrame</tt>.
+     */
+    private ByteBuffer[] frames = null;
+    /** The read-only frame of zeros shared by untouched sparse pages. */
+    private ByteBuffer zeroFrame;
+    /** The size of physical memory, in bytes. */
+    private long memorySize;
+    /** <tt>true</tt> if memory is allocated outside the Java heap. */
+    private boolean directMemory;
+
+    /**
+     * Decoded instructions, indexed by chunk of physical pages, then by page
+     * within the chunk, and then by word offset within the page. A chunk is
+     * <tt>null</tt> until an instruction is fetched from it, so a large
+     * sparse memory costs nothing for pages that hold no code. A page's
+     * entries are only valid if its epoch matches <tt>decodeEpoch</tt>.
+     */
+    private DecodedInstruction[][][] decodeCache;
+    /** The decode cache epoch in which each physical page was filled. */
+    private int[][] decodeEpochs;
+    /** The current decode cache epoch. */
+    private int decodeEpoch = 0;
+    /** The log2 of the number of physical pages in a decode cache chunk. */
+    private static final int decodeChunkShift = 10;
+    private static final int decodeChunkSize = 1 << decodeChunkShift;
+    private static final int decodeChunkMask = decodeChunkSize - 1;
+
+    /**
+     * <tt>true</tt> if instructions should be run in batches between
+     * interrupts, rather than advancing the time after each one.
+     */
+    private boolean batchedExecution;
+    /** The maximum number of instructions in a batch. */
+    private static final int maxBatchLength = 0x10000;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -569,27 +1700,63 @@ public final class Processor {
 	}
     }
 
-    private class MipsException extends Exception {
-	public MipsException(int cause) {
-	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+    /**
+     * Prepare this processor's exception object to signal the specified
+     * exception, which has no bad virtual address.
+     *
+     * @param	cause	the cause of the exception.
+     * @return	the exception to throw.
+     */
+    private MipsException raise(int cause) {
+	return mipsException.set(cause, false, 0);
+    }
 
-	    this.cause = cause;
+    /**
+     * Prepare this processor's exception object to signal the specified
+     * exception, caused by accessing the specified virtual address.
+     *
+     * @param	cause	the cause of the exception.
+     * @param	badVAddr	the virtual address that caused the exception.
+     * @return	the exception to throw.
+     */
+    private MipsException raise(int cause, int badVAddr) {
+	return mipsException.set(cause, true, badVAddr);
+    }
+
+    /**
+     * A user mode exception. A processor throws the same
+     * <tt>MipsException</tt> every time, setting its fields with
+     * <tt>raise()</tt> first, so delivering an exception allocates nothing.
+     * This is safe because an exception is always handled before the next
+     * instruction runs, and <tt>handle()</tt> copies the fields into registers
+     * before calling any kernel code.
+     */
+    private class MipsException extends Exception {
+	public MipsException() {
+	    // never printed, so don't pay for a stack trace
+	    super(null, null, false, false);
 	}
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
+	public MipsException set(int cause, boolean hasBadVAddr,
+				 int badVAddr) {
+	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-	    hasBadVAddr = true;
+	    this.cause = cause;
+	    this.hasBadVAddr = hasBadVAddr;
 	    this.badVAddr = badVAddr;
+	    return this;
 	}
 
 	public void handle() {
+	    if (profiler != null)
+		profiler.exception(cause);
+	    
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
 		writeRegister(regBadVAddr, badVAddr);
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    if (disassembling || fullDisassembling)
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
@@ -607,6 +1774,9 @@ public final class Processor {
 	private int cause, badVAddr;
     }	
 
+    /** The exception object thrown by <tt>raise()</tt>. */
+    private final MipsException mipsException = new MipsException();
+
     private class Instruction {
 	public void run() throws MipsException {
 	    // hopefully this looks familiar to 152 students?
@@ -620,84 +1790,79 @@ public final class Processor {
 	    return Lib.test(flag, flags);
 	}
 
+	/**
+	 * Report this instruction to the profiler. Must be called before the PC
+	 * advances.
+	 */
+	private void profile() {
+	    int pc = registers[regPC];
+	    profiler.retire(pc, decoded.operationClass);
+
+	    if (test(Mips.BRANCH) && branch) {
+		if (test(Mips.LINK))
+		    profiler.call(jtarget, pc+8);
+		else if (operation == Mips.JUMP && format == Mips.RFMT &&
+			 rs == regRA)
+		    profiler.ret(jtarget);
+	    }
+	}
+
 	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	    if ((disassembling && !tracing) || fullDisassembling)
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    int vaddr = registers[regPC];
+
+	    if (tracing)
+		System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+				   + ", size=4");
+
+	    paddr = translate(vaddr, 4, false, true);
+	    if (icache != null)
+		stallTicks += icache.access(paddr, false);
+	    decoded = decodeAt(paddr);
+	    value = decoded.value;
+
+	    if (tracing)
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    // the fields that depend only on the instruction word were decoded
+	    // when it was first fetched from its physical address
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + (decoded.signedImm<<2);
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -718,13 +1883,12 @@ public final class Processor {
 		src2 &= 0xFFFFFFFFL;
 	    }	    
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    if (disassembling || fullDisassembling)
 		print();	    
 	}
 
 	private void print() {
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
+	    if (disassembling && tracing && !fullDisassembling)
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 	    
@@ -756,7 +1920,7 @@ public final class Processor {
 		    minCharsPrinted += 2;
 		    maxCharsPrinted += 3;
 		    
-		    if (Lib.test(dbgFullDisassemble)) {
+		    if (fullDisassembling) {
 			System.out.print("#0x" +
 					 Lib.toHexString(registers[rs]));
 			minCharsPrinted += 11;
@@ -768,7 +1932,7 @@ public final class Processor {
 		    minCharsPrinted += 2;
 		    maxCharsPrinted += 3;
 
-		    if (Lib.test(dbgFullDisassemble) &&
+		    if (fullDisassembling &&
 			(i!=0 || !test(Mips.DST)) &&
 			!test(Mips.DELAYEDLOAD)) {
 			System.out.print("#0x" +
@@ -800,7 +1964,7 @@ public final class Processor {
 		    minCharsPrinted += 4;
 		    maxCharsPrinted += 5;
 
-		    if (Lib.test(dbgFullDisassemble)) {
+		    if (fullDisassembling) {
 			System.out.print("#0x" +
 					 Lib.toHexString(registers[rs]));
 			minCharsPrinted += 11;
@@ -840,8 +2004,7 @@ public final class Processor {
 		}
 	    }
 
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
+	    if (disassembling && tracing && !fullDisassembling)
 		System.out.print("\n");
 	}
 
@@ -869,7 +2032,7 @@ public final class Processor {
 			throw new ArithmeticException();
 		}
 		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
+		    throw raise(exceptionOverflow);
 		}
 		break;
 
@@ -939,7 +2102,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw raise(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -1009,7 +2172,7 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw raise(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
@@ -1019,7 +2182,7 @@ public final class Processor {
 	private void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw raise(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1033,7 +2196,7 @@ public final class Processor {
 		registers[dstReg] = (int) dst;
 
 	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
+		if (fullDisassembling) {
 		    System.out.print("#0x" + Lib.toHexString((int) dst));
 		    if (test(Mips.DELAYEDLOAD))
 			System.out.print(" (delayed load)");
@@ -1044,10 +2207,13 @@ public final class Processor {
 		nextPC = jtarget;
 	    }
 
+	    if (profiler != null)
+		profile();
+
 	    advancePC(nextPC);
+	    retired++;
 
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	    if ((disassembling && !tracing) || fullDisassembling)
 		System.out.print("\n");
 	}
     
@@ -1061,6 +2227,97 @@ public final class Processor {
 	long src1, src2, dst;
 	int mask;	
 	boolean branch;
+
+	DecodedInstruction decoded;
+	int paddr;
+
+	/** The number of instructions that have completed. */
+	int retired = 0;
+    }
+
+    /**
+     * The parts of an instruction that depend only on the instruction word,
+     * so that they can be computed once and cached by physical address.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    signedImm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = signedImm & 0xFFFF;
+	    else
+		imm = signedImm;
+
+	    // get the class reported to the profiler
+	    if (operation == Mips.LOAD || operation == Mips.LWL ||
+		operation == Mips.LWR)
+		operationClass = Profiler.classLoad;
+	    else if (operation == Mips.STORE || operation == Mips.SWL ||
+		     operation == Mips.SWR)
+		operationClass = Profiler.classStore;
+	    else if (Lib.test(Mips.BRANCH, flags))
+		operationClass = Profiler.classBranch;
+	    else if (operation == Mips.MULT || operation == Mips.DIV)
+		operationClass = Profiler.classMultDiv;
+	    else if (operation == Mips.SYSCALL)
+		operationClass = Profiler.classSyscall;
+	    else
+		operationClass = Profiler.classOther;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm, signedImm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg;
+	final int operationClass;
     }
 
     private static class Mips {
@@ -0,0 +1,291 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A profiler for user programs, enabled by <tt>Processor.profile</tt>. The
+ * processor reports every instruction it retires, every call and return, and
+ * every exception. Since each user instruction takes one tick, the counts
+ * show where simulated user time goes.
+ *
+ * <p>
+ * When the machine halts, the profiler prints a summary by operation class
+ * and exception cause, followed by the hottest instructions and functions.
+ * It also writes the counts per call stack to the file named by
+ * <tt>Processor.profileStacks</tt>, in the collapsed format read by
+ * flame graph tools. Functions are named by their entry address, since user
+ * programs carry no symbols.
+ *
+ * <p>
+ * Calls are recognized as taken branches that link (<tt>jal</tt>,
+ * <tt>jalr</tt>, <tt>bltzal</tt>, <tt>bgezal</tt>), and returns as
+ * <tt>jr $ra</tt>. Call stacks are not saved across context switches, so
+ * stacks for programs that run concurrently may be mixed together.
+ */
+final class Profiler {
+    /**
+     * Allocate a new profiler.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    Profiler(Privilege privilege) {
+	this.privilege = privilege;
+
+	stacksFileName = Config.getString("Processor.profileStacks",
+					  "nachos.stacks");
+	reportLength = Config.getInteger("Processor.profileLength", 20);
+    }
+
+    /**
+     * Count an instruction that has been retired.
+     *
+     * @param	pc	the address of the instruction.
+     * @param	operationClass	the class of the instruction's operation.
+     */
+    void retire(int pc, int operationClass) {
+	numRetired++;
+	classCounts[operationClass]++;
+	current.self++;
+
+	int chunk = pc >>> chunkShift;
+	if (chunk != lastChunk || lastCounts == null) {
+	    lastCounts = pcCounts.get(chunk);
+	    if (lastCounts == null) {
+		lastCounts = new long[1 << (chunkShift-2)];
+		pcCounts.put(chunk, lastCounts);
+	    }
+	    lastChunk = chunk;
+	}
+
+	lastCounts[(pc >>> 2) & ((1 << (chunkShift-2)) - 1)]++;
+    }
+
+    /**
+     * Note a call to the specified function.
+     *
+     * @param	target	the entry address of the function called.
+     * @param	returnAddress	the address the call will return to.
+     */
+    void call(int target, int returnAddress) {
+	if (depth == maxDepth) {
+	    numLostCalls++;
+	    return;
+	}
+
+	if (current.children == null)
+	    current.children = new HashMap<Integer, Frame>();
+
+	Frame callee = current.children.get(target);
+	if (callee == null) {
+	    callee = new Frame(current, target);
+	    current.children.put(target, callee);
+	}
+
+	returnAddresses[depth++] = returnAddress;
+	current = callee;
+    }
+
+    /**
+     * Note a return to the specified address. Returns that do not match a
+     * call on the stack are ignored; returns that skip frames pop all of
+     * them.
+     *
+     * @param	target	the address returned to.
+     */
+    void ret(int target) {
+	for (int i=depth-1; i>=0; i--) {
+	    if (returnAddresses[i] == target) {
+		while (depth > i) {
+		    current = current.parent;
+		    depth--;
+		}
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Count an exception.
+     *
+     * @param	cause	the cause of the exception.
+     */
+    void exception(int cause) {
+	exceptionCounts[cause]++;
+    }
+
+    /**
+     * Print the profile report, and write the call stack file.
+     */
+    void print() {
+	System.out.println("Profile: instructions retired " + numRetired);
+
+	StringBuffer buf = new StringBuffer("  by class:");
+	for (int i=0; i<numClasses; i++)
+	    buf.append(" " + classNames[i] + " " + percent(classCounts[i]));
+	System.out.println(buf);
+
+	buf = new StringBuffer("  exceptions:");
+	for (int i=0; i<exceptionCounts.length; i++) {
+	    if (exceptionCounts[i] > 0)
+		buf.append(" " + Processor.exceptionNames[i].trim() + " "
+			   + exceptionCounts[i]);
+	}
+	System.out.println(buf);
+
+	if (numLostCalls > 0)
+	    System.out.println("  calls too deep to record: " + numLostCalls);
+
+	ArrayList<long[]> pcs = new ArrayList<long[]>();
+	for (Iterator<Map.Entry<Integer, long[]>> i =
+		 pcCounts.entrySet().iterator(); i.hasNext(); ) {
+	    Map.Entry<Integer, long[]> entry = i.next();
+	    long[] counts = entry.getValue();
+	    for (int j=0; j<counts.length; j++) {
+		if (counts[j] > 0) {
+		    int pc = (entry.getKey() << chunkShift) | (j << 2);
+		    pcs.add(new long[] { pc, counts[j] });
+		}
+	    }
+	}
+	printHottest("instructions", pcs);
+
+	HashMap<Integer, long[]> functions = new HashMap<Integer, long[]>();
+	sumFunctions(root, functions);
+	printHottest("functions (self)",
+		     new ArrayList<long[]>(functions.values()));
+
+	writeStacks();
+    }
+
+    private void printHottest(String title, ArrayList<long[]> counts) {
+	Collections.sort(counts, new Comparator<long[]>() {
+		public int compare(long[] a, long[] b) {
+		    return Long.compare(b[1], a[1]);
+		}
+	    });
+
+	System.out.println("  hottest " + title + ":");
+	for (int i=0; i<counts.size() && i<reportLength; i++) {
+	    long[] count = counts.get(i);
+	    System.out.println("    0x" + Lib.toHexString((int) count[0]) + " "
+			       + count[1] + " (" + percent(count[1]) + ")");
+	}
+    }
+
+    private void sumFunctions(Frame frame, HashMap<Integer, long[]> sums) {
+	long[] sum = sums.get(frame.address);
+	if (sum == null) {
+	    sum = new long[] { frame.address, 0 };
+	    sums.put(frame.address, sum);
+	}
+	sum[1] += frame.self;
+
+	if (frame.children != null) {
+	    for (Iterator<Frame> i=frame.children.values().iterator();
+		 i.hasNext(); )
+		sumFunctions(i.next(), sums);
+	}
+    }
+
+    private void writeStacks() {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			PrintWriter out =
+			    new PrintWriter(new FileWriter(stacksFileName));
+			writeStacks(out, root, "user");
+			out.close();
+			System.out.println("  call stacks written to "
+					   + stacksFileName);
+		    }
+		    catch (IOException e) {
+			System.out.println("  could not write "
+					   + stacksFileName + ": " + e);
+		    }
+		}
+	    });
+    }
+
+    private void writeStacks(PrintWriter out, Frame frame, String stack) {
+	if (frame.self > 0)
+	    out.println(stack + " " + frame.self);
+
+	if (frame.children != null) {
+	    for (Iterator<Frame> i=frame.children.values().iterator();
+		 i.hasNext(); ) {
+		Frame child = i.next();
+		writeStacks(out, child,
+			    stack + ";0x" + Lib.toHexString(child.address));
+	    }
+	}
+    }
+
+    private String percent(long count) {
+	if (numRetired == 0)
+	    return "0.0%";
+
+	long tenths = (count * 1000 + numRetired/2) / numRetired;
+	return (tenths/10) + "." + (tenths%10) + "%";
+    }
+
+    /** A function on a call stack, with the instructions retired in it. */
+    private static class Frame {
+	Frame(Frame parent, int address) {
+	    this.parent = parent;
+	    this.address = address;
+	}
+
+	final Frame parent;
+	final int address;
+	long self = 0;
+	HashMap<Integer, Frame> children = null;
+    }
+
+    /** Operation classes. */
+    static final int
+	classLoad = 0,
+	classStore = 1,
+	classBranch = 2,
+	classMultDiv = 3,
+	classSyscall = 4,
+	classOther = 5,
+	numClasses = 6;
+
+    private static final String[] classNames = {
+	"load", "store", "branch", "mult/div", "syscall", "other"
+    };
+
+    private Privilege privilege;
+    private String stacksFileName;
+    private int reportLength;
+
+    private long numRetired = 0;
+    private long[] classCounts = new long[numClasses];
+    private long[] exceptionCounts = new long[Processor.exceptionNames.length];
+
+    /** Instruction counts, in arrays covering 4KB of address space each. */
+    private HashMap<Integer, long[]> pcCounts = new HashMap<Integer, long[]>();
+    private static final int chunkShift = 12;
+    private int lastChunk;
+    private long[] lastCounts = null;
+
+    private Frame root = new Frame(null, 0);
+    private Frame current = root;
+    private static final int maxDepth = 256;
+    private int[] returnAddresses = new int[maxDepth];
+    private int depth = 0;
+    private long numLostCalls = 0;
+}
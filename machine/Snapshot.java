@@ -0,0 +1,166 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A snapshot file holding the state of the simulated hardware: the registers,
+ * delayed load, TLB or page table, and caches of the processor, the non-zero
+ * pages of physical memory, statistics, pending interrupts, the timer, and
+ * the random number generator. The file is read and written through
+ * memory-mapped windows, so memories larger than one mapping are handled.
+ *
+ * <p>
+ * A snapshot does not include any kernel state. Restoring one only makes
+ * sense in a kernel that has reached an equivalent state, for instance by
+ * loading the same program into the same physical pages, and that has
+ * scheduled the same kinds of interrupts.
+ */
+final class Snapshot {
+    /**
+     * Save the state of the machine to the specified file.
+     *
+     * @param	fileName	the name of the snapshot file.
+     * @param	stats		the statistics to save.
+     */
+    static void save(String fileName, Stats stats) throws IOException {
+	Snapshot snapshot = new Snapshot(fileName, true);
+	try {
+	    snapshot.putInt(magic);
+	    snapshot.putInt(version);
+
+	    Machine.processor().saveSnapshot(snapshot);
+	    stats.saveSnapshot(snapshot);
+	    Machine.interrupt().saveSnapshot(snapshot);
+	    Machine.timer().saveSnapshot(snapshot);
+	    snapshot.putLong(Lib.getRandomState());
+	}
+	finally {
+	    snapshot.close();
+	}
+    }
+
+    /**
+     * Restore the state of the machine from the specified file.
+     *
+     * @param	fileName	the name of the snapshot file.
+     * @param	stats		the statistics to restore.
+     */
+    static void restore(String fileName, Stats stats) throws IOException {
+	Snapshot snapshot = new Snapshot(fileName, false);
+	try {
+	    Lib.assertTrue(snapshot.getInt() == magic &&
+			   snapshot.getInt() == version,
+			   fileName + " is not a snapshot file");
+
+	    Machine.processor().restoreSnapshot(snapshot);
+	    stats.restoreSnapshot(snapshot);
+	    Machine.interrupt().restoreSnapshot(snapshot);
+	    Machine.timer().restoreSnapshot(snapshot);
+	    Lib.setRandomState(snapshot.getLong());
+	}
+	finally {
+	    snapshot.close();
+	}
+    }
+
+    private Snapshot(String fileName, boolean writing) throws IOException {
+	this.writing = writing;
+
+	file = new RandomAccessFile(fileName, writing ? "rw" : "r");
+	if (writing)
+	    file.setLength(0);
+
+	channel = file.getChannel();
+	size = channel.size();
+    }
+
+    private void close() throws IOException {
+	window = null;
+	if (writing)
+	    channel.truncate(position);
+	file.close();
+    }
+
+    /**
+     * Make sure the current window has room for the specified number of
+     * bytes, mapping the next window of the file if it does not.
+     */
+    private MappedByteBuffer window(int length) throws IOException {
+	if (window == null || window.remaining() < length) {
+	    long start = position;
+	    if (window != null)
+		start = windowStart + window.position();
+
+	    long windowSize = Math.max(maxWindowSize, length);
+	    if (!writing) {
+		windowSize = Math.min(windowSize, size - start);
+		Lib.assertTrue(windowSize >= length, "snapshot file truncated");
+	    }
+
+	    window = channel.map(writing ? FileChannel.MapMode.READ_WRITE :
+				 FileChannel.MapMode.READ_ONLY,
+				 start, windowSize);
+	    window.order(ByteOrder.LITTLE_ENDIAN);
+	    windowStart = start;
+	}
+
+	position = windowStart + window.position() + length;
+	return window;
+    }
+
+    void putInt(int value) throws IOException {
+	window(4).putInt(value);
+    }
+
+    void putLong(long value) throws IOException {
+	window(8).putLong(value);
+    }
+
+    void putBytes(byte[] data, int offset, int length) throws IOException {
+	window(length).put(data, offset, length);
+    }
+
+    void putString(String value) throws IOException {
+	byte[] bytes = value.getBytes("UTF-8");
+	putInt(bytes.length);
+	putBytes(bytes, 0, bytes.length);
+    }
+
+    int getInt() throws IOException {
+	return window(4).getInt();
+    }
+
+    long getLong() throws IOException {
+	return window(8).getLong();
+    }
+
+    void getBytes(byte[] data, int offset, int length) throws IOException {
+	window(length).get(data, offset, length);
+    }
+
+    String getString() throws IOException {
+	byte[] bytes = new byte[getInt()];
+	getBytes(bytes, 0, bytes.length);
+	return new String(bytes, "UTF-8");
+    }
+
+    private boolean writing;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long size;
+
+    private MappedByteBuffer window = null;
+    private long windowStart = 0, position = 0;
+
+    /** Files are mapped this many bytes at a time. */
+    private static final int maxWindowSize = 0x1000000;
+
+    private static final int magic = 0x4E534E50;	// "NSNP"
+    private static final int version = 4;
+}
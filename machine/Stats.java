@@ -4,6 +4,12 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -20,15 +26,94 @@ public final class Stats {
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
 			   + ", kernel " + kernelTicks
-			   + ", user " + userTicks);
+			   + ", user " + userTicks
+			   + (idleTicks > 0 ? ", idle " + idleTicks : ""));
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (numTLBHits + numTLBMisses > 0)
+	    System.out.println("TLB: hits " + numTLBHits
+			       + ", misses " + numTLBMisses
+			       + ", evictions " + numTLBEvictions);
+	if (numPageWalks > 0)
+	    System.out.println("Page table walks: " + numPageWalks);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numFramesAllocated > 0)
+	    System.out.println("Physical memory: frames allocated "
+			       + numFramesAllocated);
+	if (numICacheHits + numICacheMisses > 0) {
+	    System.out.println("Instruction cache: hits " + numICacheHits
+			       + ", misses " + numICacheMisses);
+	    System.out.println("Data cache: hits " + numDCacheHits
+			       + ", misses " + numDCacheMisses
+			       + ", write-backs " + numDCacheWriteBacks);
+	}
+	if (numDecodeHits + numDecodeMisses > 0)
+	    System.out.println("Decode cache: hits " + numDecodeHits
+			       + ", misses " + numDecodeMisses);
+    }
+
+    /**
+     * Save every counter to a snapshot.
+     */
+    void saveSnapshot(Snapshot snapshot) throws IOException {
+	try {
+	    Field[] counters = counters();
+	    snapshot.putInt(counters.length);
+	    for (int i=0; i<counters.length; i++) {
+		snapshot.putString(counters[i].getName());
+		snapshot.putLong(((Number) counters[i].get(this)).longValue());
+	    }
+	}
+	catch (IllegalAccessException e) {
+	    Lib.assertNotReached(e.toString());
+	}
+    }
+
+    /**
+     * Restore every counter from a snapshot. Counters the snapshot does not
+     * have are left alone.
+     */
+    void restoreSnapshot(Snapshot snapshot) throws IOException {
+	try {
+	    int numCounters = snapshot.getInt();
+	    for (int i=0; i<numCounters; i++) {
+		Field field = getClass().getField(snapshot.getString());
+		long value = snapshot.getLong();
+		if (field.getType() == long.class)
+		    field.setLong(this, value);
+		else
+		    field.setInt(this, (int) value);
+	    }
+	}
+	catch (NoSuchFieldException e) {
+	    Lib.assertNotReached("unknown counter in snapshot: " + e);
+	}
+	catch (IllegalAccessException e) {
+	    Lib.assertNotReached(e.toString());
+	}
+    }
+
+    /** Return the counters in this object, in order of name. */
+    private Field[] counters() {
+	Field[] fields = getClass().getFields();
+	int numCounters = 0;
+	for (int i=0; i<fields.length; i++) {
+	    if (!Modifier.isStatic(fields[i].getModifiers()))
+		fields[numCounters++] = fields[i];
+	}
+
+	Field[] counters = Arrays.copyOf(fields, numCounters);
+	Arrays.sort(counters, new Comparator<Field>() {
+		public int compare(Field a, Field b) {
+		    return a.getName().compareTo(b.getName());
+		}
+	    });
+	return counters;
     }
 
     /**
@@ -44,6 +129,11 @@ public final class Stats {
      * The total amount of simulated time that Nachos has spent in user mode.
      */
     public long userTicks = 0;
+    /**
+     * The total amount of simulated time that was skipped while Nachos was
+     * idle, waiting for an interrupt.
+     */
+    public long idleTicks = 0;
 
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
@@ -57,10 +147,38 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of references that were translated by the TLB. */
+    public long numTLBHits = 0;
+    /** The total number of valid TLB entries that have been replaced. */
+    public int numTLBEvictions = 0;
+    /** The total number of TLB misses handled by the page table walker. */
+    public int numPageWalks = 0;
+    /** The total number of sparse physical memory frames allocated. */
+    public int numFramesAllocated = 0;
+    /** The total number of instruction fetches that hit in the cache. */
+    public long numICacheHits = 0;
+    /** The total number of instruction fetches that missed in the cache. */
+    public long numICacheMisses = 0;
+    /** The total number of data accesses that hit in the cache. */
+    public long numDCacheHits = 0;
+    /** The total number of data accesses that missed in the cache. */
+    public long numDCacheMisses = 0;
+    /** The total number of dirty data cache lines written back. */
+    public long numDCacheWriteBacks = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /**
+     * The total number of instruction fetches that found the instruction
+     * already decoded.
+     */
+    public long numDecodeHits = 0;
+    /**
+     * The total number of instruction fetches that had to decode the
+     * instruction.
+     */
+    public long numDecodeMisses = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -5,7 +5,10 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.util.ArrayList;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +17,55 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * TCBs hand control to each other according to <tt>TCB.handoff</tt>: with
+ * <tt>park</tt> (the default), a TCB sets the next TCB's running flag and
+ * unparks its thread directly; with <tt>monitor</tt>, TCBs wait and notify on
+ * the monitor of each TCB. If <tt>TCB.virtualThreads</tt> is <tt>true</tt>,
+ * each TCB after the first runs on a virtual thread, which always uses
+ * <tt>park</tt>. Either way, only one TCB runs at a time. Virtual threads are
+ * experimental, and are off by default; <tt>selfTest()</tt> forks, yields,
+ * and joins many threads on them.
+ *
+ * <p>
+ * Virtual threads need Java 21 or later, and Nachos fails at startup if
+ * they are requested on an older JVM. Nachos also installs a security
+ * manager, which Java 18 through 23 only allow if the JVM is started with
+ * <tt>-Djava.security.manager=allow</tt>, and which Java 24 and later do
+ * not support at all. So virtual threads can only be used on Java 21, 22,
+ * or 23, started with that flag:
+ *
+ * <pre>
+ *	java -Djava.security.manager=allow nachos.machine.Machine
+ * </pre>
+ *
+ * <p>
+ * If <tt>TCB.singleCarrier</tt> is <tt>true</tt>, every TCB, including the
+ * first, runs on a virtual thread, scheduled on a single carrier thread. A
+ * context switch then parks one virtual thread and resumes another on the
+ * same host thread, like yielding from one continuation to the next. The
+ * JVM reads its scheduler settings when it starts, so they can not be
+ * changed by Nachos; the JVM must be started with
+ * <tt>-Djdk.virtualThreadScheduler.parallelism=1</tt> as well, or Nachos
+ * fails at startup:
+ *
+ * <pre>
+ *	java -Djava.security.manager=allow
+ *	     -Djdk.virtualThreadScheduler.parallelism=1 nachos.machine.Machine
+ * </pre>
+ *
+ * <p>
+ * The JVM may still add a carrier while a virtual thread is pinned, for
+ * instance in a <tt>synchronized</tt> method of <tt>NetworkLink</tt>,
+ * rather than deadlock; TCBs still run one at a time. <tt>selfTest()</tt>
+ * checks that its threads all share the carrier of the first TCB.
+ *
+ * <p>
+ * When a TCB is destroyed, its Java thread goes back to a pool, and runs the
+ * next TCB that is started. <tt>TCB.poolSize</tt> limits how many idle
+ * threads are kept, and <tt>TCB.stackSize</tt> sets the stack size of
+ * platform threads, in bytes (0 for the JVM default).
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +92,81 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	maxThreads = Config.getInteger("TCB.maxThreads", 20000);
+	poolSize = Config.getInteger("TCB.poolSize", maxThreads);
+	stackSize = Config.getInteger("TCB.stackSize", 0);
+
+	String handoff = Config.getString("TCB.handoff", "park");
+	if (handoff.equals("park"))
+	    parking = true;
+	else if (handoff.equals("monitor"))
+	    parking = false;
+	else
+	    Lib.assertNotReached("bad TCB.handoff");
+
+	singleCarrier = Config.getBoolean("TCB.singleCarrier", false);
+	if (singleCarrier || Config.getBoolean("TCB.virtualThreads", false)) {
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() { findVirtualThreadBuilder(); }
+		});
+	}
+    }
+
+    /**
+     * Test whether TCBs hand off with <tt>park()</tt> and <tt>unpark()</tt>.
+     *
+     * @return	<tt>true</tt> if TCBs park rather than wait on monitors.
+     */
+    static boolean isParking() {
+	return parking;
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual()</tt> by reflection, so that Nachos still
+     * builds and runs on JVMs without virtual threads, as long as they are
+     * not requested.
+     */
+    private static void findVirtualThreadBuilder() {
+	if (singleCarrier) {
+	    Lib.assertTrue("1".equals(System.getProperty(
+				"jdk.virtualThreadScheduler.parallelism")),
+			   "TCB.singleCarrier needs the JVM option "
+			   + "-Djdk.virtualThreadScheduler.parallelism=1");
+	}
+
+	try {
+	    Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+	    virtualThreadBuilder =
+		Thread.class.getMethod("ofVirtual").invoke(null);
+	    newUnstartedThread =
+		builderClass.getMethod("unstarted", Runnable.class);
+	    isVirtualThread = Thread.class.getMethod("isVirtual");
+	    parking = true;
+	}
+	catch (Exception e) {
+	    // Java 19 and 20 have ofVirtual(), but only as a preview feature
+	    Lib.assertNotReached("virtual threads need Java 21 or later, "
+				 + "but this JVM does not support them: " + e);
+	}
+    }
+
+    /**
+     * Create a Java thread to run the specified target, on a virtual thread
+     * if they are enabled.
+     */
+    private static Thread newThread(Runnable target) {
+	if (virtualThreadBuilder != null) {
+	    try {
+		return (Thread) newUnstartedThread.invoke(virtualThreadBuilder,
+							  target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("could not create virtual thread: " + e);
+	    }
+	}
+
+	return new Thread(null, target, "TCB host", stackSize);
     }
     
     /**
@@ -86,28 +213,57 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we take a Java thread from the
+	     * pool to run it, or make a new one if the pool is empty. Creating
+	     * Java threads is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
+	    if (!idleHosts.isEmpty()) {
+		host = idleHosts.remove(idleHosts.size()-1);
+	    }
+	    else {
+		host = new Host();
+		privilege.doPrivileged(new Runnable() {
+			public void run() { host.thread = newThread(host); }
+		    });
+	    }
 
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
+	    javaThread = host.thread;
 
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	    /* The Java thread hasn't yet started this TCB, but we need to get
+	     * it blocking in yield(). We do this by temporarily turning off
+	     * the current TCB, handing this TCB to the Java thread, and waiting
+	     * for it to wake us up from threadroot(). Once the new TCB wakes
+	     * us up, it's safe to context switch to the new TCB.
 	     */
 	    currentTCB.running = false;
 	    
-	    this.javaThread.start();
+	    host.run(this);
 	    currentTCB.waitForInterrupt();
 	}
+	else if (singleCarrier && virtualThreadBuilder != null) {
+	    /* This is the first TCB, but it has to run on the carrier with all
+	     * the others, so we make a virtual thread to run threadroot(), and
+	     * leave the current Java thread waiting for it. Nachos exits from
+	     * some TCB, so the wait normally never ends.
+	     */
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() {
+			javaThread = newThread(new Runnable() {
+				public void run() { threadroot(); }
+			    });
+		    }
+		});
+
+	    javaThread.start();
+	    while (true) {
+		try {
+		    javaThread.join();
+		    break;
+		}
+		catch (InterruptedException e) {
+		}
+	    }
+	}
 	else {
 	    /* This is the first TCB, so we don't need to make a new Java
 	     * thread to run it; we just steal the current Java thread.
@@ -142,9 +298,15 @@ public final class TCB {
 	Lib.assertTrue(currentTCB.associated);
 	currentTCB.associated = false;
 	
-	// can't switch from a TCB to itself
-	if (this == currentTCB)
+	/* Can't switch from a TCB to itself. When parking, Machine.yield()
+	 * leaves it to us to give non-Nachos threads a chance to run, since
+	 * a TCB that stays current does not block.
+	 */
+	if (this == currentTCB) {
+	    if (parking)
+		Thread.yield();
 	    return;
+	}
 
 	/* There are some synchronization concerns here. As soon as we wake up
 	 * the next thread, we cannot assume anything about static variables,
@@ -207,6 +369,72 @@ public final class TCB {
 		Thread.currentThread() == currentTCB.javaThread);
     }
 
+    /**
+     * Test the virtual thread handoff, if virtual threads are enabled. Many
+     * KThreads are forked, each checks that it runs on a virtual thread and
+     * yields several times, and all of them are joined. With
+     * <tt>TCB.singleCarrier</tt>, each thread also checks that it runs on the
+     * same carrier thread as the current one, after every yield.
+     */
+    public static void selfTest() {
+	if (virtualThreadBuilder == null)
+	    return;
+
+	final int numThreads = 1000, numYields = 10;
+	final int[] yields = { 0 };
+	final String carrier = singleCarrier ? currentCarrier() : null;
+
+	KThread[] threads = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			Lib.assertTrue(isVirtual(Thread.currentThread()),
+				       "TCB is not on a virtual thread");
+			for (int j=0; j<numYields; j++) {
+			    yields[0]++;
+			    KThread.yield();
+
+			    if (carrier != null) {
+				String name = currentCarrier();
+				Lib.assertTrue(name.equals(carrier),
+					       "TCBs run on carriers " + carrier
+					       + " and " + name);
+			    }
+			}
+		    }
+		}).setName("virtual thread test " + i);
+	    threads[i].fork();
+	}
+
+	for (int i=0; i<numThreads; i++)
+	    threads[i].join();
+
+	Lib.assertTrue(yields[0] == numThreads*numYields,
+		       "virtual threads yielded " + yields[0] + " times");
+    }
+
+    private static boolean isVirtual(Thread thread) {
+	try {
+	    return ((Boolean) isVirtualThread.invoke(thread)).booleanValue();
+	}
+	catch (Exception e) {
+	    Lib.assertNotReached("could not test for a virtual thread: " + e);
+	    return false;
+	}
+    }
+
+    /**
+     * Return the name of the carrier thread the current virtual thread is
+     * mounted on. A mounted virtual thread prints as, for instance,
+     * <tt>VirtualThread[#21]/runnable@ForkJoinPool-1-worker-1</tt>.
+     */
+    private static String currentCarrier() {
+	String name = Thread.currentThread().toString();
+	int at = name.lastIndexOf('@');
+	Lib.assertTrue(at >= 0, "no carrier thread for " + name);
+	return name.substring(at+1);
+    }
+
     private void threadroot() {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
@@ -272,6 +500,15 @@ public final class TCB {
 	waitForInterrupt();
 	
 	if (done) {
+	    /* Return our Java thread to the pool before waking the destroyer,
+	     * which may start another TCB right away. The thread picks up
+	     * that TCB once it has unwound this one.
+	     */
+	    if (host != null && idleHosts.size() < poolSize) {
+		idleHosts.add(host);
+		hostReturned = true;
+	    }
+
 	    currentTCB.interrupt();
 	    throw new ThreadDeath();
 	}
@@ -280,14 +517,27 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
-     * TCB needs to go to wait for its turn to run. This includes the ping-pong
-     * process of starting and destroying TCBs, as well as in context switching
-     * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-     * is updated by <tt>contextSwitch()</tt> before we get called.
+     * Waits until the <tt>running</tt> flag of this TCB is set to
+     * <tt>true</tt>, parked or on the monitor bound to this TCB.
+     * <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to wait
+     * for its turn to run. This includes the ping-pong process of starting and
+     * destroying TCBs, as well as in context switching from this TCB to
+     * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+     * <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
+    private void waitForInterrupt() {
+	if (parking) {
+	    // running is volatile, so seeing it set also shows us everything
+	    // the TCB that set it did before
+	    while (!running)
+		LockSupport.park(this);
+	}
+	else {
+	    waitOnMonitor();
+	}
+    }
+
+    private synchronized void waitOnMonitor() {
 	while (!running) {
 	    try { wait(); }
 	    catch (InterruptedException e) { }
@@ -296,11 +546,21 @@ public final class TCB {
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking its thread or signalling the monitor bound to it. Used in
+     * the ping-pong process of starting and destroying TCBs, as well as in
+     * context switching to this TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+	if (parking) {
+	    running = true;
+	    LockSupport.unpark(javaThread);
+	}
+	else {
+	    notifyMonitor();
+	}
+    }
+
+    private synchronized void notifyMonitor() {
 	running = true;
 	notify();
     }
@@ -328,9 +588,23 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence. Set from <tt>TCB.maxThreads</tt> by
+     * <tt>givePrivilege()</tt>, since the configuration may not be loaded
+     * yet when this class is. Do not change this.
+     */
+    public static int maxThreads = 20000;
+
+    /** The maximum number of idle Java threads kept in the pool. */
+    private static int poolSize;
+    /** The stack size of new platform threads, or 0 for the default. */
+    private static long stackSize;
+
+    /**
+     * Java threads that are not bound to a TCB, waiting to run the next one
+     * started. Only changed by the current TCB, or by a TCB being destroyed
+     * before it wakes the current TCB, so no synchronization is necessary.
      */
-    public static final int maxThreads = 250;
+    private static ArrayList<Host> idleHosts = new ArrayList<Host>();
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -364,6 +638,22 @@ public final class TCB {
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
 
+    /**
+     * <tt>true</tt> if TCBs hand off with <tt>park()</tt> and
+     * <tt>unpark()</tt>, rather than on their monitors.
+     */
+    private static boolean parking = true;
+    /** <tt>true</tt> if all TCBs should share one carrier thread. */
+    private static boolean singleCarrier = false;
+    /**
+     * The result of <tt>Thread.ofVirtual()</tt>, and its method to create a
+     * thread, if virtual threads are used.
+     */
+    private static Object virtualThreadBuilder = null;
+    private static Method newUnstartedThread = null;
+    /** <tt>Thread.isVirtual()</tt>, if virtual threads are used. */
+    private static Method isVirtualThread = null;
+
     /**
      * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
      * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -388,7 +678,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +690,51 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+
+    /** The Java thread running this TCB, unless this is the first TCB. */
+    private Host host = null;
+    /** <tt>true</tt> once this TCB has returned its Java thread to the pool. */
+    private boolean hostReturned = false;
+
+    /**
+     * A Java thread that runs TCBs, one after another. It runs each TCB until
+     * the TCB is destroyed, then waits in the pool to be given the next one.
+     * If the pool is full, the thread exits instead.
+     */
+    private static class Host implements Runnable {
+	/**
+	 * Give the specified TCB to this thread, starting the thread if
+	 * necessary.
+	 */
+	void run(TCB tcb) {
+	    next = tcb;
+	    if (!started) {
+		started = true;
+		thread.start();
+	    }
+	    else {
+		LockSupport.unpark(thread);
+	    }
+	}
+
+	public void run() {
+	    while (true) {
+		TCB tcb;
+		while ((tcb = next) == null)
+		    LockSupport.park(this);
+		next = null;
+
+		tcb.threadroot();
+
+		if (!tcb.hostReturned)
+		    return;
+	    }
+	}
+
+	Thread thread;
+	private volatile TCB next = null;
+	private boolean started = false;
+    }
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.IOException;
+
 /**
  * A hardware timer generates a CPU timer interrupt approximately every 500
  * clock ticks. This means that it can be used for implementing time-slicing,
@@ -13,6 +15,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * If <tt>Timer.tickless</tt> is <tt>true</tt>, the timer does not interrupt
+ * periodically. Instead, the kernel programs it with <tt>setDeadline()</tt>
+ * to interrupt once, exactly at the time it next needs to run.
  */
 public final class Timer {
     /**
@@ -37,7 +44,9 @@ public final class Timer {
 		}
 	    };
 
-	scheduleInterrupt();
+	tickless = Config.getBoolean("Timer.tickless", false);
+	if (!tickless)
+	    scheduleInterrupt();
     }
 
     /**
@@ -50,6 +59,36 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Test whether the timer is in tickless mode, in which it only
+     * interrupts at the deadlines programmed with <tt>setDeadline()</tt>.
+     *
+     * @return	<tt>true</tt> if the timer is in tickless mode.
+     */
+    public boolean isTickless() {
+	return tickless;
+    }
+
+    /**
+     * Program the timer to interrupt once, at the specified time. This
+     * replaces any deadline that has not yet passed. If the time is not in the
+     * future, the interrupt occurs on the next tick. Only valid in tickless
+     * mode.
+     *
+     * @param	time	the time at which to interrupt, or
+     *			<tt>Long.MAX_VALUE</tt> to cancel the deadline.
+     */
+    public void setDeadline(long time) {
+	Lib.assertTrue(tickless);
+
+	deadline = time;
+	if (time == Long.MAX_VALUE)
+	    return;
+
+	privilege.interrupt.schedule(Math.max(time - getTime(), 1), "timer",
+				     timerInterrupt);
+    }
+
     /**
      * Get the current time.
      *
@@ -60,7 +99,15 @@ public final class Timer {
     }
 
     private void timerInterrupt() {
-	scheduleInterrupt();
+	if (tickless) {
+	    // interrupts for deadlines that were replaced are ignored
+	    if (getTime() < deadline)
+		return;
+	    deadline = Long.MAX_VALUE;
+	}
+	else {
+	    scheduleInterrupt();
+	}
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -80,6 +127,27 @@ public final class Timer {
 	privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
     }
 
+    /**
+     * Save the time of the last timer interrupt and the current deadline to a
+     * snapshot. The next interrupt is saved with the other pending
+     * interrupts.
+     */
+    void saveSnapshot(Snapshot snapshot) throws IOException {
+	snapshot.putLong(lastTimerInterrupt);
+	snapshot.putLong(deadline);
+    }
+
+    /**
+     * Restore the time of the last timer interrupt and the current deadline
+     * from a snapshot.
+     */
+    void restoreSnapshot(Snapshot snapshot) throws IOException {
+	lastTimerInterrupt = snapshot.getLong();
+	deadline = snapshot.getLong();
+    }
+
+    private boolean tickless;
+    private long deadline = Long.MAX_VALUE;
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
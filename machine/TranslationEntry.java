@@ -48,6 +48,7 @@ public final class TranslationEntry {
 	readOnly = entry.readOnly;
 	used = entry.used;
 	dirty = entry.dirty;
+	numPages = entry.numPages;
     }
 
     /** The virtual page number. */
@@ -78,4 +79,13 @@ public final class TranslationEntry {
      * user program.
      */
     public boolean dirty;
+
+    /**
+     * The number of pages this entry maps, starting at <tt>vpn</tt> and
+     * <tt>ppn</tt>. Normally 1; a TLB entry may map a large page instead,
+     * in which case this must be a power of two, and <tt>vpn</tt> and
+     * <tt>ppn</tt> must be multiples of it. Page tables that are not walked
+     * into a TLB ignore this field.
+     */
+    public int numPages = 1;
 }
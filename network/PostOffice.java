@@ -10,10 +10,10 @@ import nachos.threads.*;
  * corrupted, but they might get lost.
  *
  * <p>
- * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot
- * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * The receive interrupt handler defers the delivery of each message to a
+ * "postal worker" thread, which places it in the appropriate queue. This
+ * cannot be done in the receive interrupt handler because each queue
+ * (implemented with a <tt>SynchList</tt>) is protected by a lock.
  */
 public class PostOffice {
     /**
@@ -22,7 +22,6 @@ public class PostOffice {
      * "postal worker" thread.
      */
     public PostOffice() {
-	messageReceived = new Semaphore(0);
 	messageSent = new Semaphore(0);
 	sendLock = new Lock();
 
@@ -36,14 +35,14 @@ public class PostOffice {
 	Runnable sendHandler = new Runnable() {
 	    public void run() { sendInterrupt(); }
 	};
-	Machine.networkLink().setInterruptHandlers(receiveHandler,
-						   sendHandler);
+	delivery = new Runnable() {
+	    public void run() { postalDelivery(); }
+	};
 
-	KThread t = new KThread(new Runnable() {
-		public void run() { postalDelivery(); }
-	    });
+	postalWorker = new WorkQueue("postal worker");
 
-	t.fork();
+	Machine.networkLink().setInterruptHandlers(receiveHandler,
+						   sendHandler);
     }
 
     /**
@@ -67,38 +66,35 @@ public class PostOffice {
     }
 
     /**
-     * Wait for incoming messages, and then put them in the correct mailbox.
+     * Dequeue an incoming message, and put it in the correct mailbox. Run by
+     * the postal worker thread, once for each receive interrupt.
      */
     private void postalDelivery() {
-	while (true) {
-	    messageReceived.P();
+	Packet p = Machine.networkLink().receive();
 
-	    Packet p = Machine.networkLink().receive();
+	MailMessage mail;
 
-	    MailMessage mail;
-
-	    try {
-		mail = new MailMessage(p);
-	    }
-	    catch (MalformedPacketException e) {
-		continue;
-	    }
+	try {
+	    mail = new MailMessage(p);
+	}
+	catch (MalformedPacketException e) {
+	    return;
+	}
 
-	    if (Lib.test(dbgNet))
-		System.out.println("delivering mail to port " + mail.dstPort
-				   + ": " + mail);
+	if (Lib.test(dbgNet))
+	    System.out.println("delivering mail to port " + mail.dstPort
+			       + ": " + mail);
 
-	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
-	}
+	// atomically add message to the mailbox and wake a waiting thread
+	queues[mail.dstPort].add(mail);
     }
 
     /**
      * Called when a packet has arrived and can be dequeued from the network
-     * link.
+     * link. Defers the delivery to the postal worker.
      */
     private void receiveInterrupt() {
-	messageReceived.V();
+	postalWorker.defer(delivery);
     }
 
     /**
@@ -126,7 +122,8 @@ public class PostOffice {
     }
 
     private SynchList[] queues;
-    private Semaphore messageReceived;	// V'd when a message can be dequeued
+    private WorkQueue postalWorker;
+    private Runnable delivery;
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
 
@@ -158,6 +158,24 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by the specified number of user
+	 * instructions at once. No pending interrupt may become due in that
+	 * time.
+	 *
+	 * @param	numInstructions	the number of user instructions executed.
+	 */
+	public void tickUser(int numInstructions);
+
+	/**
+	 * Return the simulated time at which the earliest pending interrupt is
+	 * scheduled to occur.
+	 *
+	 * @return	the time of the next pending interrupt, or
+	 *		<tt>Long.MAX_VALUE</tt> if no interrupt is pending.
+	 */
+	public long nextPendingTime();
     }
 
     /**
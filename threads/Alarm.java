@@ -1,12 +1,13 @@
 package nachos.threads;
 
 import nachos.machine.*;
+import java.util.ArrayList;
 import java.util.PriorityQueue;
 import nachos.threads.KThread;
 
 /**
- * Uses the hardware timer to provide preemption, and to allow threads to sleep
- * until a certain time.
+ * Uses the hardware timer to provide preemption, to allow threads to sleep
+ * until a certain time, and to run callbacks when timers expire.
  */
 public class Alarm {
     /**
@@ -15,33 +16,76 @@ public class Alarm {
      *
      * <p><b>Note</b>: Nachos will not function correctly with more than one
      * alarm.
+     *
+     * <p>If the timer is tickless, the alarm programs it to interrupt at the
+     * earliest wake time of a waiting thread, or at the end of the current
+     * time slice if some thread other than the idle thread can run.
      */
     public Alarm() {
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
+
+        tickless = Machine.timer().isTickless();
+        if (tickless)
+            armTimer(Machine.timer().getTime() + Stats.TimerTicks);
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks), or, if the timer is
+     * tickless, at the deadlines programmed by this alarm. Runs the callbacks
+     * of the timers that have expired, then causes the current thread to
+     * yield, forcing a context switch if there is another thread that should
+     * be run.
      */
     public void timerInterrupt() {
         //timerInterrupt Data Fields
         long currentTime = Machine.timer().getTime();
         boolean interrupt = Machine.interrupt().disable();
 
-        //check the PriorityQueue for waitThreads that have a finished wait time and ready them
-        while(!waitQueue.isEmpty() && (waitQueue.peek().getWakeTime() <= currentTime)){
-            waitQueue.poll().getWaitThread().ready();
+        //take every expired timer off the queue before running any callback, so callbacks that
+        //reschedule their timer wait for the next interrupt
+        ArrayList<Handle> expired = new ArrayList<Handle>();
+        while(!waitQueue.isEmpty() && (waitQueue.peek().wakeTime <= currentTime)){
+            Entry entry = waitQueue.poll();
+            if (entry.handle.entry != entry) {
+                numStale--;
+                continue;
+            }
+            entry.handle.entry = null;
+            expired.add(entry.handle);
+        }
+
+        for (int i=0; i<expired.size(); i++)
+            expired.get(i).callback.run();
+
+        //tickless: the deadline just passed, so program the next one. A new time slice is only
+        //needed if a thread other than the idle thread will run.
+        if (tickless) {
+            armedTime = Long.MAX_VALUE;
+            long next = nextWakeTime();
+            if (!expired.isEmpty() || !KThread.currentIsIdle())
+                next = Math.min(next, currentTime + Stats.TimerTicks);
+            armTimer(next);
         }
 
         Machine.interrupt().restore(interrupt);
         KThread.yield();
     }
 
+    /**
+     * Called when the CPU switches from the idle thread to another thread.
+     * If the timer is tickless, it may have been left unprogrammed while the
+     * CPU was idle, and the thread may have been readied by some interrupt
+     * other than the timer, so make sure it interrupts by the end of a time
+     * slice. Otherwise the thread would never be preempted.
+     */
+    void idleEnded() {
+        if (tickless)
+            armTimer(Math.min(armedTime, Machine.timer().getTime() + Stats.TimerTicks));
+    }
+
     /**
      * Put the current thread to sleep for at least <i>x</i> ticks,
      * waking it up in the timer interrupt handler. The thread must be
@@ -59,170 +103,299 @@ public class Alarm {
     public void waitUntil(long waitTime) {
         //store the interrupt status
         boolean interrupt = Machine.interrupt().disable();
-        //calculate the time the thread needs to wake
-        long wakeTime = Machine.timer().getTime() + waitTime;
-        //use custom waitThread object to store KThread and calculated wakeTime
-        waitThread waiter = new waitThread(KThread.currentThread(), wakeTime);
 
-        waitQueue.add(waiter);
+        //use a timer whose callback readies this thread again
+        final KThread thread = KThread.currentThread();
+        schedule(waitTime, new Runnable() {
+                public void run() { thread.ready(); }
+            });
         KThread.sleep();
 
         Machine.interrupt().restore(interrupt);
     }
 
-    private class waitThread implements Comparable<waitThread>{
-        //waitThread data fields
-        private long wakeTime;
-        private KThread waitThread;
+    /**
+     * Create a timer that runs the specified callback when it expires. The
+     * timer is not scheduled until <tt>Handle.schedule()</tt> is called.
+     *
+     * @param	callback	the callback to run.
+     * @return	the new timer.
+     */
+    public Handle newTimer(Runnable callback) {
+        return new Handle(callback);
+    }
 
-        //waitThread class constructor
-        public waitThread(KThread thread, long time){
-            this.waitThread = thread;
-            this.wakeTime = time;
+    /**
+     * Create a timer that runs the specified callback after at least
+     * <i>delay</i> ticks, and schedule it.
+     *
+     * @param	delay	the minimum number of clock ticks to wait.
+     * @param	callback	the callback to run.
+     * @return	the new timer.
+     */
+    public Handle schedule(long delay, Runnable callback) {
+        Handle handle = new Handle(callback);
+        handle.schedule(delay);
+        return handle;
+    }
+
+    /**
+     * A timer that runs a callback when it expires. Callbacks run in the
+     * timer interrupt handler with interrupts disabled, so they must not
+     * block; to wake a thread, a callback calls <tt>KThread.ready()</tt>.
+     * A timer can be canceled, and rescheduled any number of times, whether
+     * or not it has expired.
+     *
+     * <p>
+     * If <tt>Alarm.slack</tt> is greater than zero, expiry times are rounded
+     * up to a multiple of that many ticks, so timers that expire close
+     * together are dispatched by a single timer interrupt.
+     */
+    public class Handle {
+        private Handle(Runnable callback) {
+            this.callback = callback;
+        }
+
+        /**
+         * Schedule this timer to expire after at least <i>delay</i> ticks,
+         * replacing any earlier expiry time.
+         *
+         * @param	delay	the minimum number of clock ticks to wait.
+         */
+        public void schedule(long delay) {
+            boolean interrupt = Machine.interrupt().disable();
+
+            cancel();
+
+            //round up to the slack window, so nearby timers expire together
+            long wakeTime = Machine.timer().getTime() + delay;
+            if (slack > 1 && wakeTime > 0)
+                wakeTime = ((wakeTime + slack - 1) / slack) * slack;
+
+            entry = new Entry(this, wakeTime);
+            waitQueue.add(entry);
+
+            //tickless: wake at the exact time, not at the end of the time slice
+            if (tickless && wakeTime < armedTime)
+                armTimer(wakeTime);
+
+            Machine.interrupt().restore(interrupt);
+        }
+
+        /**
+         * Cancel this timer, if it is scheduled.
+         */
+        public void cancel() {
+            boolean interrupt = Machine.interrupt().disable();
+
+            //leave the entry in the queue, but forget it; compact the queue if mostly forgotten
+            if (entry != null) {
+                entry = null;
+                numStale++;
+                if (numStale > 64 && numStale > waitQueue.size()/2)
+                    purgeStale();
+            }
+
+            Machine.interrupt().restore(interrupt);
+        }
+
+        /**
+         * Test whether this timer is scheduled and has not yet expired.
+         *
+         * @return	<tt>true</tt> if this timer is pending.
+         */
+        public boolean isPending() {
+            return entry != null;
         }
 
-        //wakeTime accessor
-        public long getWakeTime(){
-            return wakeTime;
+        /**
+         * Return the time at which this timer will expire.
+         *
+         * @return	the expiry time, or <tt>Long.MAX_VALUE</tt> if this timer is
+         *		not pending.
+         */
+        public long getWakeTime() {
+            Entry current = entry;
+            return (current == null) ? Long.MAX_VALUE : current.wakeTime;
         }
 
-        //waitThread accessor
-        public KThread getWaitThread(){
-            return waitThread;
+        private Runnable callback;
+        private Entry entry = null;
+    }
+
+    /**
+     * Return the earliest expiry time of a pending timer, dropping forgotten
+     * entries from the front of the queue.
+     */
+    private long nextWakeTime() {
+        while (!waitQueue.isEmpty() && waitQueue.peek().handle.entry != waitQueue.peek()) {
+            waitQueue.poll();
+            numStale--;
         }
 
-        //Comparable Interface Implementation
-        public int compareTo(waitThread otherThread){
-            if(wakeTime > otherThread.wakeTime)
-                return 1;
-            else if(wakeTime == otherThread.wakeTime)
-                return 0;
+        return waitQueue.isEmpty() ? Long.MAX_VALUE : waitQueue.peek().wakeTime;
+    }
+
+    /**
+     * Rebuild the queue without the entries of canceled or rescheduled timers.
+     */
+    private void purgeStale() {
+        PriorityQueue<Entry> live = new PriorityQueue<Entry>(Math.max(waitQueue.size() - numStale, 1));
+        for (Entry entry : waitQueue) {
+            if (entry.handle.entry == entry)
+                live.add(entry);
+        }
+        waitQueue = live;
+        numStale = 0;
+    }
+
+    /**
+     * Program the tickless timer to interrupt at the specified time, unless
+     * it is already programmed to interrupt at that time.
+     */
+    private void armTimer(long time) {
+        if (time != armedTime) {
+            armedTime = time;
+            Machine.timer().setDeadline(time);
+        }
+    }
+
+    //tickless mode data fields: the time the timer is programmed to interrupt
+    private boolean tickless;
+    private long armedTime = Long.MAX_VALUE;
+
+    //timers expiring within this many ticks of each other are dispatched together
+    private long slack = Config.getInteger("Alarm.slack", 0);
+
+    //a scheduled expiry of a timer; it is forgotten if the timer is canceled or rescheduled
+    private static class Entry implements Comparable<Entry>{
+        //Entry data fields
+        private Handle handle;
+        private long wakeTime;
+        private long sequence = nextSequence++;
+
+        //Entry class constructor
+        private Entry(Handle handle, long time){
+            this.handle = handle;
+            this.wakeTime = time;
+        }
+
+        //Comparable Interface Implementation: timers with equal wake times expire in the order
+        //they were scheduled
+        public int compareTo(Entry otherEntry){
+            if(wakeTime != otherEntry.wakeTime)
+                return (wakeTime > otherEntry.wakeTime) ? 1 : -1;
             else
-                return -1;
+                return Long.compare(sequence, otherEntry.sequence);
         }
+
+        private static long nextSequence = 0;
     }
 
-    //Priority queue object implementation using the custom object waitThread to store and sort threads according
-    //to their timeToWait
-    private PriorityQueue<waitThread> waitQueue = new PriorityQueue<waitThread>();
+    //Priority queue object implementation using the custom object Entry to store and sort timers according
+    //to their wake time
+    private PriorityQueue<Entry> waitQueue = new PriorityQueue<Entry>();
+    private int numStale = 0;
 
     /**
-     * selfTest() method tests to make sure that threads are put to sleep and awoken in the proper order. The order
-     * is determined by the timeToWait rather than the order in which the threads were put to sleep.
+     * Test the alarm. Threads must wake in the order of their wake times, a
+     * rescheduled timer must expire only at its new time, a canceled timer
+     * must never expire, and a callback must be able to reschedule its own
+     * timer. Also tests <tt>Condition2.sleepFor()</tt>, which is built on
+     * these timers.
      */
-    private static final char AlarmTestChar = 'a';
-    public static void selftest(){
+    public static void selfTest() {
         Lib.debug(AlarmTestChar, "Alarm.selfTest(): Starting self test.");
-        final Alarm testAlarm = new Alarm();
-
-        //Create one thread and see how long it takes to wake
-        KThread threadAlpha = new KThread();
-        Lib.debug(AlarmTestChar, "Alarm.selfTest(): Alarm object and one test threads (Alpha) created. Wait time 1000000");
-
-        threadAlpha.setTarget(new Runnable(){
-            public void run(){
-                long start = Machine.timer().getTime();
-                Lib.debug(AlarmTestChar, "Alarm.selfTest(): Thread Alpha waiting.");
-                testAlarm.waitUntil(1000000);
-                Lib.debug(AlarmTestChar, "Alarm.selfTest(): Thread Alpha finished after " + Long.toString(Machine.timer().getTime() - start) + ".");
-            }
-        });
-        Lib.debug(AlarmTestChar, "Alarm.selfTest(): Forking thread Alpha.");
-        threadAlpha.fork();
-        threadAlpha.join();
-        Lib.debug(AlarmTestChar, "Alarm.selfTest(): Alarm test with single wait times finished.");
-
-        //Create three threads with differant WaitTime
-        //Order Expected: Thread C, B, A
-        KThread threadA = new KThread();
-        KThread threadB = new KThread();
-        KThread threadC = new KThread();
-        Lib.debug(AlarmTestChar, "Alarm.selfTest(): Alarm object and three test threads (A,B,C) created. Order Expected: Thread C, B, A");
-
-        threadA.setTarget(new Runnable(){
-            public void run(){
-                Lib.debug(AlarmTestChar, "Alarm.selfTest(): Thread A waiting.");
-                testAlarm.waitUntil(20000000);
-                Lib.debug(AlarmTestChar, "Alarm.selfTest(): Thread A finished.");
-            }
-        });
-        threadB.setTarget(new Runnable(){
-            public void run(){
-                Lib.debug(AlarmTestChar, "Alarm.selfTest(): Thread B waiting.");
-                testAlarm.waitUntil(10000000);
-                Lib.debug(AlarmTestChar, "Alarm.selfTest(): Thread B finished.");
-            }
-        });
-        threadC.setTarget(new Runnable(){
-            public void run(){
-                Lib.debug(AlarmTestChar, "Alarm.selfTest(): Thread C waiting.");
-                testAlarm.waitUntil(1000000);
-                Lib.debug(AlarmTestChar, "Alarm.selfTest(): Thread C finished.");
-            }
-        });
+        final Alarm alarm = ThreadedKernel.alarm;
 
-        Lib.debug(AlarmTestChar, "Alarm.selfTest(): Forking threads A, B, and C.");
-        threadA.fork();
-        threadB.fork();
-        threadC.fork();
-        threadA.join();
+        //threads wake in the order of their wake times, not the order they went to sleep
+        final ArrayList<String> order = new ArrayList<String>();
+        String[] names = { "A", "B", "C" };
+        long[] waits = { 30000, 10000, 20000 };
+        KThread[] threads = new KThread[names.length];
+        for (int i=0; i<names.length; i++) {
+            final String name = names[i];
+            final long wakeTime = Machine.timer().getTime() + waits[i];
+            threads[i] = new KThread(new Runnable() {
+                    public void run() {
+                        alarm.waitUntil(wakeTime - Machine.timer().getTime());
+                        Lib.assertTrue(Machine.timer().getTime() >= wakeTime);
+                        order.add(name);
+                    }
+                });
+            threads[i].setName("alarm test " + name).fork();
+        }
+        for (int i=0; i<threads.length; i++)
+            threads[i].join();
+        Lib.assertTrue(order.toString().equals("[B, C, A]"), "threads woke out of order: " + order);
+        Lib.debug(AlarmTestChar, "Alarm.selfTest(): waitUntil() passed.");
 
-        Lib.debug(AlarmTestChar, "Alarm.selfTest(): Alarm test with different wait times finished.");
+        //a timer is not pending until scheduled, and not after being canceled
+        final long[] fired = new long[3];
+        Handle handle = alarm.newTimer(new Runnable() {
+                public void run() { fired[0]++; fired[1] = Machine.timer().getTime(); }
+            });
+        Lib.assertTrue(!handle.isPending() && handle.getWakeTime() == Long.MAX_VALUE);
+        long start = Machine.timer().getTime();
+        handle.schedule(5000);
+        Lib.assertTrue(handle.isPending() && handle.getWakeTime() >= start + 5000);
+        handle.cancel();
+        Lib.assertTrue(!handle.isPending());
 
-        //Create three threads with the same WaitTime
-        //Order Expected: Same order as call
-        KThread thread1 = new KThread();
-        KThread thread2 = new KThread();
-        KThread thread3 = new KThread();
+        //rescheduling replaces the earlier expiry time, so the timer expires once, at the new time
+        start = Machine.timer().getTime();
+        handle.schedule(50000);
+        handle.schedule(2000);
+        Handle canceled = alarm.schedule(1000, new Runnable() {
+                public void run() { fired[2]++; }
+            });
+        canceled.cancel();
+        alarm.waitUntil(60000);
+        Lib.assertTrue(fired[0] == 1 && fired[1] >= start + 2000 && fired[1] < start + 50000,
+                       "rescheduled timer expired at the wrong time");
+        Lib.assertTrue(fired[2] == 0, "canceled timer expired");
+        Lib.assertTrue(!handle.isPending());
 
-        Lib.debug(AlarmTestChar, "Alarm.selfTest(): Alarm object and three test threads (1,2,3) created. Order Expected: Thread 1, 2, 3");
+        //a callback may reschedule its own timer
+        final Handle[] periodic = new Handle[1];
+        final int[] ticks = { 0 };
+        periodic[0] = alarm.newTimer(new Runnable() {
+                public void run() {
+                    if (++ticks[0] < 3)
+                        periodic[0].schedule(1000);
+                }
+            });
+        periodic[0].schedule(1000);
+        alarm.waitUntil(20000);
+        Lib.assertTrue(ticks[0] == 3 && !periodic[0].isPending(), "periodic timer expired " + ticks[0] + " times");
+        Lib.debug(AlarmTestChar, "Alarm.selfTest(): timers passed.");
 
-        thread1.setTarget(new Runnable(){
-            public void run(){
-                Lib.debug(AlarmTestChar, "Alarm.selfTest(): Thread 1 waiting.");
-                testAlarm.waitUntil(10000000);
-                Lib.debug(AlarmTestChar, "Alarm.selfTest(): Thread 1 finished.");
-            }
-        });
-        thread2.setTarget(new Runnable(){
-            public void run(){
-                Lib.debug(AlarmTestChar, "Alarm.selfTest(): Thread 2 waiting.");
-                testAlarm.waitUntil(10000000);
-                Lib.debug(AlarmTestChar, "Alarm.selfTest(): Thread 2 finished.");
-            }
-        });
-        thread3.setTarget(new Runnable(){
-            public void run(){
-                Lib.debug(AlarmTestChar, "Alarm.selfTest(): Thread 3 waiting.");
-                testAlarm.waitUntil(10000000);
-                Lib.debug(AlarmTestChar, "Alarm.selfTest(): Thread 3 finished.");
-            }
-        });
-
-        Lib.debug(AlarmTestChar, "Alarm.selfTest(): Forking threads 1, 2, and 3.");
-        thread1.fork();
-        thread2.fork();
-        thread3.fork();
-        thread3.join();
-        Lib.debug(AlarmTestChar, "Alarm.selfTest(): Alarm test with same wait times finished.");
-
-        //Create one thread with negative wait time
-        KThread threadNeg = new KThread();
-        Lib.debug(AlarmTestChar, "Alarm.selfTest(): Alarm object and one test threads (Neg) created. Wait time -100");
-
-        threadNeg.setTarget(new Runnable(){
-            public void run(){
-                Lib.debug(AlarmTestChar, "Alarm.selfTest(): Thread Neg waiting.");
-                testAlarm.waitUntil(-100);
-                Lib.debug(AlarmTestChar, "Alarm.selfTest(): Thread Neg finished.");
-            }
-        });
-        Lib.debug(AlarmTestChar, "Alarm.selfTest(): Forking thread Neg.");
-        threadNeg.fork();
-        threadNeg.join();
-        Lib.debug(AlarmTestChar, "Alarm.selfTest(): Alarm test with negative wait times finished.");
+        //sleepFor() returns false if it times out, and true if woken first
+        final Lock lock = new Lock();
+        final Condition2 condition = new Condition2(lock);
+        lock.acquire();
+        start = Machine.timer().getTime();
+        Lib.assertTrue(!condition.sleepFor(3000), "sleepFor() woke without wake()");
+        Lib.assertTrue(Machine.timer().getTime() >= start + 3000);
 
+        KThread waker = new KThread(new Runnable() {
+                public void run() {
+                    alarm.waitUntil(1000);
+                    lock.acquire();
+                    condition.wake();
+                    lock.release();
+                }
+            });
+        waker.setName("alarm test waker").fork();
+        start = Machine.timer().getTime();
+        Lib.assertTrue(condition.sleepFor(100000), "sleepFor() timed out despite wake()");
+        Lib.assertTrue(Machine.timer().getTime() < start + 100000);
+        lock.release();
+        waker.join();
+        Lib.debug(AlarmTestChar, "Alarm.selfTest(): sleepFor() passed.");
 
         Lib.debug(AlarmTestChar, "Alarm.selfTest(): Finished selfTest(), passed.");
     }
+
+    private static final char AlarmTestChar = 'a';
 }
@@ -41,6 +41,31 @@ public class Condition2 {
 		Lib.debug(dbgC2, Machine.timer().getTime() + "Cnd2 sleep: interrupts enabled");
 	   }
 
+	//sleepFor() is sleep() with a timeout: an Alarm timer takes the thread back off the
+	//waitList if no wake() has reached it after timeout ticks. Returns true if woken by wake().
+	public boolean sleepFor(long timeout) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		final KThread thread = KThread.currentThread();
+		final boolean[] timedOut = { false };
+		boolean intSatus = Machine.interrupt().disable();
+		waitList.add(thread);
+		Alarm.Handle timer = ThreadedKernel.alarm.schedule(timeout, new Runnable() {
+			public void run() {
+				if (waitList.remove(thread)) {
+					timedOut[0] = true;
+					thread.ready();
+				}
+			}
+		});
+		conditionLock.release();
+		KThread.sleep();
+		timer.cancel();
+		conditionLock.acquire();
+		Machine.interrupt().restore(intSatus);
+		return !timedOut[0];
+	}
+
 	//wake() uses a waker thread to pull a thread out of the waitList //for use
 	public void wake() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
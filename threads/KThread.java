@@ -39,6 +39,15 @@ public class KThread {
 	return currentThread;
     }
     
+    /**
+     * Test whether the current thread is the idle thread.
+     *
+     * @return	<tt>true</tt> if no other thread was ready to run.
+     */
+    static boolean currentIsIdle() {
+	return currentThread == idleThread;
+    }
+
     /**
      * Allocate a new <tt>KThread</tt>. If this is the first <tt>KThread</tt>,
      * create an idle thread as well.
@@ -58,6 +67,14 @@ public class KThread {
 
 	    createIdleThread();
 	}
+
+	/* Threads that join this one donate priority to it. The queue is
+	 * acquired here, while it is still empty, rather than in fork(), since
+	 * a thread may be joined before it is forked.
+	 */
+	boolean intStatus = Machine.interrupt().disable();
+	joinedThreads.acquire(this);
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -323,12 +340,26 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * Unless <tt>KThread.idleFastForward</tt> is <tt>false</tt>, the idle
+     * thread lets time jump to the next pending interrupt before it yields,
+     * rather than advancing the time a few ticks per yield.
      */
     private static void createIdleThread() {
 	Lib.assertTrue(idleThread == null);
+
+	final boolean fastForward =
+	    Config.getBoolean("KThread.idleFastForward", true);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    if (fastForward)
+			Machine.interrupt().idle();
+		    yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -379,6 +410,11 @@ public class KThread {
 	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 		  + " to: " + toString());
 
+	// a thread leaving the idle state needs a time slice to be preempted
+	if (currentThread == idleThread && this != idleThread &&
+	    ThreadedKernel.alarm != null)
+	    ThreadedKernel.alarm.idleEnded();
+
 	currentThread = this;
 
 	tcb.contextSwitch();
@@ -439,6 +475,22 @@ public class KThread {
     private static final char dbgThread = 't';
     public static void selfTest() {
 		Lib.debug(dbgThread, "KThread.selfTest(): Starting self test.");
+
+		// a thread may be joined before it is forked
+		final KThread child = new KThread(new Runnable() {
+			public void run() {
+			}
+		}).setName("join test child");
+		KThread joiner = new KThread(new Runnable() {
+			public void run() {
+				child.join();
+			}
+		}).setName("join test joiner");
+		joiner.fork();
+		KThread.yield();
+		child.fork();
+		joiner.join();
+		Lib.assertTrue(child.status == statusFinished);
 	
 		Lib.debug(dbgThread, "KThread.selfTest(): Finished self test, passed.");
 		
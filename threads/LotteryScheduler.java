@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  *
@@ -26,7 +22,7 @@ import java.util.Iterator;
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
  */
-public class LotteryScheduler extends PriorityScheduler {
+public class LotteryScheduler extends Scheduler {
     /**
      * Allocate a new lottery scheduler.
      */
@@ -42,7 +38,483 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	return getLotteryState(thread).tickets;
+    }
+
+    /**
+     * Return the number of tickets the specified thread holds, including
+     * those transferred to it, or <tt>Integer.MAX_VALUE</tt> if there are
+     * more than that.
+     */
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) Math.min(getLotteryState(thread).effective,
+			      Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	Lib.assertTrue(priority >= ticketsMinimum &&
+		   priority <= ticketsMaximum);
+	
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int tickets = getPriority(thread);
+	boolean changed = (tickets < ticketsMaximum);
+	if (changed)
+	    setPriority(thread, tickets+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int tickets = getPriority(thread);
+	boolean changed = (tickets > ticketsMinimum);
+	if (changed)
+	    setPriority(thread, tickets-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Test this scheduler, if it is the one the kernel uses. Spinning threads
+     * holding 100, 200, 300, and 400 tickets must get about 10, 20, 30, and
+     * 40 percent of the processor, and the holder of a lock must hold the
+     * tickets of the threads waiting for it as well as its own.
+     */
+    public static void selfTest() {
+	if (ThreadedKernel.scheduler.getClass() != LotteryScheduler.class)
+	    return;
+
+	final int numSamples = 4000;
+	final int[] tickets = { 100, 200, 300, 400 };
+	final int[] wins = new int[tickets.length];
+	final int[] draws = { 0 };
+	final Semaphore finished = new Semaphore(0);
+
+	for (int i=0; i<tickets.length; i++) {
+	    final int spinner = i;
+	    KThread thread = new KThread(new Runnable() {
+		    public void run() {
+			while (draws[0] < numSamples) {
+			    wins[spinner]++;
+			    draws[0]++;
+			    KThread.yield();
+			}
+			finished.V();
+		    }
+		}).setName("lottery spinner " + i);
+	    setSelfTestTickets(thread, tickets[i]);
+	    thread.fork();
+	}
+
+	for (int i=0; i<tickets.length; i++)
+	    finished.P();
+
+	for (int i=0; i<tickets.length; i++) {
+	    int percent = wins[i] * 100 / numSamples;
+	    Lib.assertTrue(Math.abs(percent - tickets[i]/10) <= 5,
+			   tickets[i] + " tickets won " + percent + "%");
+	}
+
+	// the holder of a lock gets the tickets of the threads waiting for it
+	final Lock lock = new Lock();
+	final Semaphore acquired = new Semaphore(0);
+	final Semaphore release = new Semaphore(0);
+	KThread holder = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    acquired.V();
+		    release.P();
+		    lock.release();
+		}
+	    }).setName("lottery lock holder");
+	holder.fork();
+	acquired.P();
+
+	KThread[] waiters = new KThread[2];
+	for (int i=0; i<waiters.length; i++) {
+	    waiters[i] = new KThread(new Runnable() {
+		    public void run() {
+			lock.acquire();
+			lock.release();
+		    }
+		}).setName("lottery lock waiter " + i);
+	    setSelfTestTickets(waiters[i], tickets[i]);
+	    waiters[i].fork();
+	}
+
+	int expected = ticketsDefault + tickets[0] + tickets[1];
+	for (int i=0; i<100 && getSelfTestTickets(holder) != expected; i++)
+	    KThread.yield();
+	Lib.assertTrue(getSelfTestTickets(holder) == expected,
+		       "lock holder has " + getSelfTestTickets(holder) +
+		       " tickets");
+
+	release.V();
+	holder.join();
+	for (int i=0; i<waiters.length; i++)
+	    waiters[i].join();
+    }
+
+    private static void setSelfTestTickets(KThread thread, int tickets) {
+	boolean intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(thread, tickets);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static int getSelfTestTickets(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+	int tickets = ThreadedKernel.scheduler.getEffectivePriority(thread);
+	Machine.interrupt().restore(intStatus);
+	return tickets;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int ticketsDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int ticketsMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int ticketsMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the lottery state of the specified thread.
+     *
+     * @param	thread	the thread whose lottery state to return.
+     * @return	the lottery state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     *
+     * <p>
+     * Each waiting thread occupies a slot, and a Fenwick tree over the slots
+     * keeps prefix sums of their tickets. Adding or removing a thread,
+     * changing its tickets, and finding the holder of the winning ticket all
+     * take O(log n) time. Slots freed by departing threads are reused.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (size == 0) {
+		// nobody is waiting, so the resource is simply released
+		if (owner != null)
+		    owner.release(this);
+		return null;
+	    }
+
+	    LotteryState winner = slots[findSlot(draw())];
+	    remove(winner);
+	    winner.acquire(this);
+
+	    return winner.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<slots.length; i++) {
+		if (slots[i] != null)
+		    System.out.print(slots[i].thread + "(" + slotTickets[i]
+				     + ") ");
+	    }
+	}
+
+	/**
+	 * Draw a winning ticket, numbered from 0 up to the total number of
+	 * tickets held by the waiting threads.
+	 */
+	private long draw() {
+	    if (totalTickets <= Integer.MAX_VALUE)
+		return Lib.random((int) totalTickets);
+	    else
+		return Math.min((long) (Lib.random() * totalTickets),
+				totalTickets-1);
+	}
+
+	/**
+	 * Return the slot holding the specified ticket: the first slot whose
+	 * prefix sum exceeds it.
+	 */
+	private int findSlot(long ticket) {
+	    int index = 0;
+	    for (int step=Integer.highestOneBit(slots.length); step>0;
+		 step>>=1) {
+		if (index+step <= slots.length && tree[index+step] <= ticket) {
+		    index += step;
+		    ticket -= tree[index];
+		}
+	    }
+	    return index;
+	}
+
+	/**
+	 * Add <i>delta</i> tickets to the specified slot.
+	 */
+	private void addTickets(int slot, long delta) {
+	    slotTickets[slot] += delta;
+	    totalTickets += delta;
+	    for (int i=slot+1; i<=slots.length; i+=i&(-i))
+		tree[i] += delta;
+	}
+
+	void add(LotteryState state) {
+	    if (freeSlots == 0)
+		grow();
+
+	    int slot = freeSlot[--freeSlots];
+	    slots[slot] = state;
+	    state.slot = slot;
+	    size++;
+	    addTickets(slot, state.effective);
+	    updateDonation();
+	}
+
+	void remove(LotteryState state) {
+	    int slot = state.slot;
+	    Lib.assertTrue(slots[slot] == state);
+
+	    addTickets(slot, -slotTickets[slot]);
+	    slots[slot] = null;
+	    freeSlot[freeSlots++] = slot;
+	    size--;
+
+	    state.slot = -1;
+	    state.waitingOn = null;
+	    updateDonation();
+	}
+
+	/**
+	 * Update the tickets of a waiting thread whose effective tickets have
+	 * changed.
+	 */
+	void update(LotteryState state) {
+	    addTickets(state.slot, state.effective - slotTickets[state.slot]);
+	    updateDonation();
+	}
+
+	/**
+	 * Double the number of slots, and rebuild the tree.
+	 */
+	private void grow() {
+	    int capacity = Math.max(slots.length*2, 4);
+
+	    LotteryState[] newSlots = new LotteryState[capacity];
+	    long[] newSlotTickets = new long[capacity];
+	    System.arraycopy(slots, 0, newSlots, 0, slots.length);
+	    System.arraycopy(slotTickets, 0, newSlotTickets, 0, slots.length);
+
+	    // free slots are taken from the end, so hand out the low ones first
+	    int[] newFreeSlot = new int[capacity];
+	    for (int i=capacity-1; i>=slots.length; i--)
+		newFreeSlot[freeSlots++] = i;
+
+	    long[] newTree = new long[capacity+1];
+	    for (int i=1; i<=capacity; i++) {
+		newTree[i] += newSlotTickets[i-1];
+		int parent = i + (i&(-i));
+		if (parent <= capacity)
+		    newTree[parent] += newTree[i];
+	    }
+
+	    slots = newSlots;
+	    slotTickets = newSlotTickets;
+	    freeSlot = newFreeSlot;
+	    tree = newTree;
+	}
+
+	/**
+	 * Pass a change in the tickets of the waiting threads on to the owner.
+	 */
+	void updateDonation() {
+	    long newDonation = transferPriority ? totalTickets : 0;
+	    if (newDonation == currentDonation)
+		return;
+
+	    long oldDonation = currentDonation;
+	    currentDonation = newDonation;
+	    if (owner != null)
+		owner.donationChanged(newDonation - oldDonation);
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread that has access to the resource, if any. */
+	LotteryState owner = null;
+	/** The tickets this queue currently transfers to its owner. */
+	long currentDonation = 0;
+
+	private LotteryState[] slots = new LotteryState[0];
+	private long[] slotTickets = new long[0];
+	private int[] freeSlot = new int[0];
+	private int freeSlots = 0;
+	/**
+	 * The Fenwick tree, indexed from 1: <tt>tree[i]</tt> is the sum of
+	 * the tickets in slots <tt>i-(i&amp;-i)</tt> through <tt>i-1</tt>.
+	 */
+	private long[] tree = new long[1];
+	private int size = 0;
+	private long totalTickets = 0;
+    }
+
+    /**
+     * The lottery state of a thread: its tickets, the tickets transferred to
+     * it, and the queue it is waiting on, if any. The effective number of
+     * tickets is cached, and changes are passed along the chain of waiting
+     * threads as they happen, as in <tt>PriorityScheduler</tt>, except that
+     * transferred tickets add up rather than taking the maximum.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Set the tickets of the associated thread to the specified value.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    if (this.tickets == tickets)
+		return;
+
+	    long delta = (long) tickets - this.tickets;
+	    this.tickets = tickets;
+	    updateEffective(delta);
+	}
+
+	/**
+	 * Called when the associated thread starts waiting for access to
+	 * whatever is guarded by <tt>waitQueue</tt>.
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    if (waitQueue.owner == this)
+		return;
+
+	    if (waitQueue.owner != null)
+		waitQueue.owner.release(waitQueue);
+
+	    waitQueue.owner = this;
+	    donationChanged(waitQueue.currentDonation);
+	}
+
+	/**
+	 * Called when the associated thread no longer has access to whatever
+	 * is guarded by <tt>waitQueue</tt>.
+	 */
+	void release(LotteryQueue waitQueue) {
+	    Lib.assertTrue(waitQueue.owner == this);
+
+	    waitQueue.owner = null;
+	    donationChanged(-waitQueue.currentDonation);
+	}
+
+	/**
+	 * Add <i>delta</i> to the tickets transferred to this thread.
+	 */
+	void donationChanged(long delta) {
+	    updateEffective(delta);
+	}
+
+	private void updateEffective(long delta) {
+	    if (delta == 0)
+		return;
+
+	    effective += delta;
+
+	    /* Tickets transferred around a cycle of waiting threads (which
+	     * can only be a deadlock) would grow forever, so stop the change
+	     * when it comes back to a thread it has already passed.
+	     */
+	    if (waitingOn != null && !updating) {
+		updating = true;
+		waitingOn.update(this);
+		updating = false;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets = ticketsDefault;
+	/** The cached tickets of the thread, including those transferred. */
+	protected long effective = ticketsDefault;
+
+	/** The queue the associated thread is waiting on, if any. */
+	LotteryQueue waitingOn = null;
+	/** The slot of this thread in <tt>waitingOn</tt>. */
+	int slot = -1;
+
+	private boolean updating = false;
     }
 }
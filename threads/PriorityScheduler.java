@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads based on their priorities.
  *
@@ -72,8 +68,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMaximum)
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority+1);
 
@@ -87,8 +85,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMinimum)
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority-1);
 
@@ -96,6 +96,133 @@ public class PriorityScheduler extends Scheduler {
 	return true;
     }
 
+    /**
+     * Test this scheduler, if it is the one the kernel uses. A low-priority
+     * thread holding a lock that a high-priority thread waits for must run
+     * before medium-priority threads that are ready to run, and so must a
+     * low-priority thread that a high-priority thread joins. Raising the
+     * priority past the maximum, or lowering it past the minimum, must fail
+     * and leave interrupts enabled.
+     */
+    public static void selfTest() {
+	if (ThreadedKernel.scheduler.getClass() != PriorityScheduler.class)
+	    return;
+
+	KThread self = KThread.currentThread();
+	boolean intStatus = Machine.interrupt().disable();
+	int selfPriority = ThreadedKernel.scheduler.getPriority(self);
+	Machine.interrupt().restore(intStatus);
+
+	// the holder of a lock wanted by a high-priority thread
+	final Lock lock = new Lock();
+	final Semaphore acquired = new Semaphore(0);
+	final Semaphore release = new Semaphore(0);
+	KThread holder = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    acquired.V();
+		    release.P();
+
+		    boolean intStatus = Machine.interrupt().disable();
+		    Lib.assertTrue(ThreadedKernel.scheduler
+				   .getEffectivePriority() == 6);
+		    Machine.interrupt().restore(intStatus);
+
+		    selfTestLog.append("L");
+		    lock.release();
+		}
+	    }).setName("lock holder");
+	KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    selfTestLog.append("H");
+		    lock.release();
+		}
+	    }).setName("lock waiter");
+
+	setSelfTestPriority(self, priorityMaximum);
+	setSelfTestPriority(holder, 1);
+	holder.fork();
+	acquired.P();
+	release.V();
+	String order = runSelfTest(holder, waiter);
+	Lib.assertTrue(order.equals("LHMMM"),
+		       "lock holder ran in order " + order);
+
+	// a thread joined by a high-priority thread
+	final KThread worker = new KThread(new Runnable() {
+		public void run() {
+		    selfTestLog.append("W");
+		}
+	    }).setName("joined thread");
+	KThread joiner = new KThread(new Runnable() {
+		public void run() {
+		    worker.join();
+		    selfTestLog.append("J");
+		}
+	    }).setName("joiner");
+
+	setSelfTestPriority(worker, 1);
+	worker.fork();
+	order = runSelfTest(worker, joiner);
+	Lib.assertTrue(order.equals("WJMMM"),
+		       "joined thread ran in order " + order);
+
+	// at either limit, the priority cannot move and interrupts come back
+	setSelfTestPriority(self, priorityMaximum);
+	Lib.assertTrue(!ThreadedKernel.scheduler.increasePriority() &&
+		       Machine.interrupt().enabled());
+	setSelfTestPriority(self, priorityMinimum);
+	Lib.assertTrue(!ThreadedKernel.scheduler.decreasePriority() &&
+		       Machine.interrupt().enabled());
+
+	setSelfTestPriority(self, selfPriority);
+    }
+
+    /**
+     * Fork <tt>high</tt> at priority 6 and three spinning threads at
+     * priority 4, after the low-priority thread <tt>low</tt> has been forked,
+     * and return the order in which they finish.
+     */
+    private static String runSelfTest(KThread low, KThread high) {
+	final Semaphore finished = new Semaphore(0);
+	final int numSpinners = 3;
+
+	selfTestLog.setLength(0);
+
+	for (int i=0; i<numSpinners; i++) {
+	    KThread spinner = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<10; j++)
+			    KThread.yield();
+			selfTestLog.append("M");
+			finished.V();
+		    }
+		}).setName("spinner " + i);
+	    setSelfTestPriority(spinner, 4);
+	    spinner.fork();
+	}
+
+	setSelfTestPriority(high, 6);
+	high.fork();
+
+	// let the others run, without donating to any of them
+	for (int i=0; i<numSpinners; i++)
+	    finished.P();
+	high.join();
+	low.join();
+
+	return selfTestLog.toString();
+    }
+
+    private static void setSelfTestPriority(KThread thread, int priority) {
+	boolean intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(thread, priority);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static StringBuffer selfTestLog = new StringBuffer();
+
     /**
      * The default priority for a new thread. Do not change this value.
      */
@@ -123,7 +250,12 @@ public class PriorityScheduler extends Scheduler {
     }
 
     /**
-     * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     * A <tt>ThreadQueue</tt> that sorts threads by priority. The waiting
+     * threads are kept in a binary heap ordered by effective priority, and
+     * then by the time they started waiting, so that threads of equal
+     * priority are dequeued in FIFO order. Each thread records its position
+     * in the heap, so a thread whose effective priority changes is moved in
+     * O(log n) time.
      */
     protected class PriorityQueue extends ThreadQueue {
 	PriorityQueue(boolean transferPriority) {
@@ -142,8 +274,19 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    if (size == 0) {
+		// nobody is waiting, so the resource is simply released
+		if (owner != null)
+		    owner.release(this);
+		return null;
+	    }
+
+	    ThreadState next = heap[0];
+	    remove(next);
+	    next.acquire(this);
+
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +297,120 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    return (size == 0) ? null : heap[0];
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].thread + "(" + heap[i].effective
+				 + ") ");
+	}
+
+	/**
+	 * Return the priority this queue donates to its owner: the effective
+	 * priority of the first waiting thread, or -1 if there is none or this
+	 * queue does not transfer priority.
+	 */
+	int donation() {
+	    if (!transferPriority || size == 0)
+		return -1;
+
+	    return heap[0].effective;
+	}
+
+	/**
+	 * Pass a change in the first waiting thread on to the owner.
+	 */
+	void updateDonation() {
+	    int newDonation = donation();
+	    if (newDonation == currentDonation)
+		return;
+
+	    int oldDonation = currentDonation;
+	    currentDonation = newDonation;
+	    if (owner != null)
+		owner.donationChanged(oldDonation, newDonation);
+	}
+
+	void add(ThreadState state) {
+	    if (size == heap.length) {
+		ThreadState[] larger = new ThreadState[size*2];
+		System.arraycopy(heap, 0, larger, 0, size);
+		heap = larger;
+	    }
+
+	    heap[size] = state;
+	    state.heapIndex = size;
+	    size++;
+	    siftUp(state.heapIndex);
+	    updateDonation();
+	}
+
+	void remove(ThreadState state) {
+	    int i = state.heapIndex;
+	    Lib.assertTrue(heap[i] == state);
+
+	    size--;
+	    if (i != size) {
+		heap[i] = heap[size];
+		heap[i].heapIndex = i;
+		siftDown(siftUp(i));
+	    }
+	    heap[size] = null;
+
+	    state.heapIndex = -1;
+	    state.waitingOn = null;
+	    updateDonation();
+	}
+
+	/**
+	 * Move a waiting thread whose effective priority has changed.
+	 */
+	void reposition(ThreadState state) {
+	    siftDown(siftUp(state.heapIndex));
+	    updateDonation();
+	}
+
+	private boolean before(ThreadState a, ThreadState b) {
+	    if (a.effective != b.effective)
+		return a.effective > b.effective;
+	    return a.waitTime < b.waitTime;
+	}
+
+	private int siftUp(int i) {
+	    ThreadState state = heap[i];
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!before(state, heap[parent]))
+		    break;
+		heap[i] = heap[parent];
+		heap[i].heapIndex = i;
+		i = parent;
+	    }
+	    heap[i] = state;
+	    state.heapIndex = i;
+	    return i;
+	}
+
+	private int siftDown(int i) {
+	    ThreadState state = heap[i];
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= size)
+		    break;
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+		if (!before(heap[child], state))
+		    break;
+		heap[i] = heap[child];
+		heap[i].heapIndex = i;
+		i = child;
+	    }
+	    heap[i] = state;
+	    state.heapIndex = i;
+	    return i;
 	}
 
 	/**
@@ -168,6 +418,14 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The thread that has access to the resource, if any. */
+	ThreadState owner = null;
+	/** The priority this queue currently donates to its owner. */
+	int currentDonation = -1;
+
+	private ThreadState[] heap = new ThreadState[4];
+	private int size = 0;
     }
 
     /**
@@ -175,6 +433,14 @@ public class PriorityScheduler extends Scheduler {
      * priority, its effective priority, any objects it owns, and the queue
      * it's waiting for, if any.
      *
+     * <p>
+     * The effective priority is cached. Each thread counts the donations it
+     * receives at each priority level from the queues it owns, so it can find
+     * its highest donation without visiting those queues. When its effective
+     * priority changes, the queue it waits on is reordered and, if that
+     * changes the queue's donation, the change is passed on to the queue's
+     * owner, and so on along the chain of waiting threads.
+     *
      * @see	nachos.threads.KThread#schedulingState
      */
     protected class ThreadState {
@@ -205,8 +471,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effective;
 	}
 
 	/**
@@ -220,7 +485,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +501,11 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitTime = nextWaitTime++;
+	    waitQueue.add(this);
 	}
 
 	/**
@@ -250,12 +519,78 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
-	}	
+	    if (waitQueue.owner == this)
+		return;
+
+	    if (waitQueue.owner != null)
+		waitQueue.owner.release(waitQueue);
+
+	    waitQueue.owner = this;
+	    donationChanged(-1, waitQueue.currentDonation);
+	}
+
+	/**
+	 * Called when the associated thread no longer has access to whatever
+	 * is guarded by <tt>waitQueue</tt>.
+	 */
+	void release(PriorityQueue waitQueue) {
+	    Lib.assertTrue(waitQueue.owner == this);
+
+	    waitQueue.owner = null;
+	    donationChanged(waitQueue.currentDonation, -1);
+	}
+
+	/**
+	 * Replace one of the donations this thread receives from the queues it
+	 * owns. A donation of -1 stands for none.
+	 */
+	void donationChanged(int oldDonation, int newDonation) {
+	    if (oldDonation == newDonation)
+		return;
+
+	    if (oldDonation >= 0)
+		donations[oldDonation]--;
+	    if (newDonation >= 0)
+		donations[newDonation]++;
+
+	    updateEffectivePriority();
+	}
+
+	private void updateEffectivePriority() {
+	    int newEffective = priority;
+	    for (int p=priorityMaximum; p>priority; p--) {
+		if (donations[p] > 0) {
+		    newEffective = p;
+		    break;
+		}
+	    }
+
+	    if (newEffective == effective)
+		return;
+
+	    effective = newEffective;
+	    if (waitingOn != null)
+		waitingOn.reposition(this);
+	}
 
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The cached effective priority of the associated thread. */
+	protected int effective = priorityDefault;
+
+	/** The number of owned queues donating each priority. */
+	private int[] donations = new int[priorityMaximum+1];
+
+	/** The queue the associated thread is waiting on, if any. */
+	PriorityQueue waitingOn = null;
+	/** The position of this thread in the heap of <tt>waitingOn</tt>. */
+	int heapIndex = -1;
+	/** When the associated thread started waiting, for FIFO order. */
+	long waitTime;
     }
+
+    /** Increases each time a thread starts waiting on a queue. */
+    private long nextWaitTime = 0;
 }
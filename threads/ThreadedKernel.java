@@ -40,15 +40,21 @@ public class ThreadedKernel extends Kernel {
     }
 
     /**
-     * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * Test this kernel. Test the <tt>KThread</tt>, <tt>TCB</tt>,
+     * <tt>Semaphore</tt>, <tt>SynchList</tt>, <tt>Alarm</tt>,
+     * <tt>WorkQueue</tt>, and <tt>ElevatorBank</tt> classes, and the
+     * scheduler. Note that the autograder never calls this method, so it is
+     * safe to put additional tests here.
      */	
     public void selfTest() {
 	KThread.selfTest();
+	TCB.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	Alarm.selfTest();
+	WorkQueue.selfTest();
+	PriorityScheduler.selfTest();
+	LotteryScheduler.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
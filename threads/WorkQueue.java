@@ -0,0 +1,137 @@
+package nachos.threads;
+
+import java.util.ArrayList;
+import nachos.machine.*;
+
+/**
+ * A queue of deferred work, done by a dedicated kernel thread. Interrupt
+ * handlers run with interrupts disabled and must not block, so they should do
+ * as little as possible. Instead, a handler can add a work item to a
+ * <tt>WorkQueue</tt>. The item is run later by the worker thread, with
+ * interrupts enabled, where it may acquire locks and block.
+ *
+ * <p>
+ * Items are run in the order they were added. The worker takes all the
+ * pending items at once and runs them as a batch, then yields before taking
+ * the next batch, so that other threads still get to run when work arrives
+ * faster than it is done.
+ */
+public class WorkQueue {
+    /**
+     * Allocate a new work queue, and fork its worker thread.
+     *
+     * @param	name	the name of the worker thread.
+     */
+    public WorkQueue(String name) {
+	worker = new KThread(new Runnable() {
+		public void run() { runWorker(); }
+	    });
+	worker.setName(name);
+	worker.fork();
+    }
+
+    /**
+     * Add a work item to the queue, waking the worker thread if it is
+     * waiting for work. This does not block, so it may be called by interrupt
+     * handlers.
+     *
+     * @param	work	the work to do. Must not be <tt>null</tt>.
+     */
+    public void defer(Runnable work) {
+	Lib.assertTrue(work != null);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	pending.add(work);
+	if (workerWaiting) {
+	    workerWaiting = false;
+	    worker.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wait for work, then run it in batches, forever.
+     */
+    private void runWorker() {
+	ArrayList<Runnable> batch = new ArrayList<Runnable>();
+
+	while (true) {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    while (pending.isEmpty()) {
+		workerWaiting = true;
+		KThread.sleep();
+	    }
+
+	    // take every pending item, and leave an empty list for new ones
+	    ArrayList<Runnable> work = pending;
+	    pending = batch;
+	    batch = work;
+
+	    Machine.interrupt().restore(intStatus);
+
+	    Lib.debug(dbgWork, worker.getName() + " running " + batch.size()
+		      + " deferred items");
+
+	    for (int i=0; i<batch.size(); i++)
+		batch.get(i).run();
+	    batch.clear();
+
+	    KThread.yield();
+	}
+    }
+
+    /**
+     * Test a work queue. Items deferred with interrupts disabled, as by an
+     * interrupt handler, must not run until later, and must then run in the
+     * worker thread, in order, with interrupts enabled. Items must be able to
+     * block.
+     */
+    public static void selfTest() {
+	final WorkQueue queue = new WorkQueue("work queue test");
+	final ArrayList<Integer> done = new ArrayList<Integer>();
+	final Lock lock = new Lock();
+	final Semaphore finished = new Semaphore(0);
+	final int numItems = 5;
+
+	// hold the lock, so that the first item blocks
+	lock.acquire();
+
+	boolean intStatus = Machine.interrupt().disable();
+	for (int i=0; i<numItems; i++) {
+	    final int item = i;
+	    queue.defer(new Runnable() {
+		    public void run() {
+			Lib.assertTrue(KThread.currentThread() == queue.worker);
+			Lib.assertTrue(Machine.interrupt().enabled());
+
+			lock.acquire();
+			done.add(item);
+			lock.release();
+
+			if (item == numItems-1)
+			    finished.V();
+		    }
+		});
+	}
+	Machine.interrupt().restore(intStatus);
+
+	KThread.yield();
+	Lib.assertTrue(done.isEmpty());
+	lock.release();
+
+	finished.P();
+	Lib.assertTrue(done.toString().equals("[0, 1, 2, 3, 4]"),
+		       "work items ran out of order: " + done);
+
+	Lib.debug(dbgWork, "WorkQueue.selfTest(): passed");
+    }
+
+    private KThread worker;
+    private ArrayList<Runnable> pending = new ArrayList<Runnable>();
+    private boolean workerWaiting = false;
+
+    private static final char dbgWork = 'w';
+}
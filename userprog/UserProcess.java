@@ -96,22 +96,24 @@ public class UserProcess{
 		entry.used = true;
             
 		//Calculate the physical address and memory available
-		int addr = entry.ppn * pageSize + vOffset;
-		byte[] mem= Machine.processor().getMemory();
+		//(in longs, since memory can be up to 4GB)
+		long addr = (long) entry.ppn * pageSize + vOffset;
+		long memSize = (long) Machine.processor().getNumPhysPages() * pageSize;
                 
 		//If the physical address is out of bounds return 0
-		if(addr < 0 || addr > mem.length || !entry.valid)
+		if(addr < 0 || addr > memSize || !entry.valid)
 			return 0;
                     
 		//Set the amount of bytes accessed
-		int amount = Math.min(length, mem.length - addr);
+		int amount = (int) Math.min(length, memSize - addr);
         
+		//physical addresses are unsigned, so the int may be negative
 		if(read) {
-			System.arraycopy(mem, addr, data, offset, amount);
+			Machine.processor().readPhysicalMemory((int) addr, data, offset, amount);
 		}else {
 			if(!entry.readOnly) {
 				//Copy into memory from data
-  				System.arraycopy(data, offset, mem, addr, amount);
+  				Machine.processor().writePhysicalMemory((int) addr, data, offset, amount);
 			}else{
 				return 0;
         	}
@@ -858,7 +860,7 @@ public class UserProcess{
 	private int initialPC, initialSP;
 	private int argc, argv;
 
-	private static final int pageSize = Processor.pageSize;
+	private static final int pageSize = Machine.processor().getPageSize();
 	private static final char dbgProcess = 'a';
 
 	//Task 1 Variables
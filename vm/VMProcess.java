@@ -67,7 +67,7 @@ public class VMProcess extends UserProcess {
 	}
     }
 	
-    private static final int pageSize = Processor.pageSize;
+    private static final int pageSize = Machine.processor().getPageSize();
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
 }